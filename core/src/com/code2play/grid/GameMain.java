@@ -1,13 +1,24 @@
 package com.code2play.grid;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import com.badlogic.gdx.Game;
 import com.badlogic.gdx.Gdx;
-import com.badlogic.gdx.files.FileHandle;
 import com.code2play.grid.game.GameMode;
 import com.code2play.grid.game.GameState;
 import com.code2play.grid.game.Grid;
+import com.code2play.grid.game.GridListener;
+import com.code2play.grid.game.GridRules;
+import com.code2play.grid.game.HintEngine;
+import com.code2play.grid.game.LevelCache;
+import com.code2play.grid.game.LevelPack;
 
-public class GameMain extends Game {
+public class GameMain extends Game implements GridRules, GridListener {
 
 	/** All the screens **/
 	GameScreen gameScreen; 
@@ -21,9 +32,25 @@ public class GameMain extends Game {
 	/** Game states **/
 	private GameState gameState;
 
+	/** Background search of hints, shared by all levels **/
+	private HintEngine hintEngine;
+
+	/** All levels of challenge mode, each read from the level pack once per session **/
+	private LevelCache levelCache;
+
+	/** Background thread that loads the next level while the current one is completed **/
+	private ExecutorService levelLoader;
+
+	/** Next level being loaded in the background, null if none **/
+	private Future<Grid> nextGrid;
+	private int nextGridLevel;
+
 	/** DEBUG: whether or not to log FPS **/
 	public boolean showFPS;
 
+	/** DEBUG: whether or not to save the replay of every level played for bug reports **/
+	public boolean saveReplays;
+
 	/** Game state constants **/
 	private static final int DEFAULT_GRID_WIDTH = 4;
 	private static final int DEFAULT_GRID_HEIGHT = 4;
@@ -57,11 +84,24 @@ public class GameMain extends Game {
 		//TODO done in puzzle choosing screen
 		gameMode = GameMode.CHALLENGE;
 		gameState = GameState.PLAYING;
+		hintEngine = new HintEngine();
+		levelLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "LevelLoader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 
 		if (gameMode == GameMode.CLASSIC)
 			grid = new Grid(this, DEFAULT_GRID_WIDTH, DEFAULT_GRID_HEIGHT);			// normal mode
-		else if (gameMode == GameMode.CHALLENGE)
-			grid = Grid.load(this, Gdx.files.internal("levels/1.lvl"));				// challenge mode
+		else if (gameMode == GameMode.CHALLENGE) {
+			levelCache = new LevelCache(LevelPack.open(Gdx.files.internal("levels/levels.pack")));
+			grid = Grid.load(this, levelCache, 1);									// challenge mode
+			logLevelLoaded();
+		}
+		grid.setListener(this);
 
 		// set screen TODO mainmenu screen, puzzle choosing screen
 		//TODO done in puzzle choosing screen
@@ -78,16 +118,18 @@ public class GameMain extends Game {
 	 * TODO
 	 */
 	public void loadNextLevel() {
-		String nextLevel = "levels/" + (grid.getLevel()+1) + ".lvl";
-		if (grid.getLevel()+1 > 7) {
+		int nextLevel = grid.getLevel()+1;
+		if (nextLevel > 7 || !levelCache.contains(nextLevel)) {
 			actionResolver.showShortToast("This level is not available in DEMO version!");
 			return;
 		}
 		
-		// load new level file
-		grid = null;
-		FileHandle fh = Gdx.files.internal(nextLevel);
-		grid = Grid.load(this, fh);
+		// take the level prefetched when this one was completed, or load it now
+		grid = takePrefetchedLevel(nextLevel);
+		if (grid == null) grid = Grid.load(this, levelCache, nextLevel);
+		logLevelLoaded();
+		grid.setListener(this);
+		hintEngine.clear();
 		
 		// dispose all stuff in this current screen
 		gameScreen.dispose();		
@@ -98,6 +140,52 @@ public class GameMain extends Game {
 		this.setScreen(gameScreen);
 	}
 
+	private void logLevelLoaded() {
+		Gdx.app.log("Grid", "Loaded level " + grid.getLevel() + " with dimension " + 
+				grid.getWidth() + "x" + grid.getHeight());
+	}
+
+	/**
+	 * Starts loading the level after the current one in the background, 
+	 * so that continuing to it does not wait for it to be read
+	 */
+	private void prefetchNextLevel() {
+		final int level = grid.getLevel()+1;
+		if (levelCache == null || !levelCache.contains(level) || 
+				(nextGrid != null && nextGridLevel == level)) return;
+		if (nextGrid != null) nextGrid.cancel(false);
+		nextGridLevel = level;
+		nextGrid = levelLoader.submit(new Callable<Grid>() {
+			@Override
+			public Grid call() {
+				return Grid.load(GameMain.this, levelCache, level);
+			}
+		});
+	}
+
+	/**
+	 * Returns the level loaded by prefetchNextLevel, waiting for it if it is
+	 * still being loaded
+	 * @param level Level number
+	 * @return Null if that level was not prefetched, or failed to load
+	 */
+	private Grid takePrefetchedLevel(int level) {
+		Future<Grid> future = nextGrid;
+		nextGrid = null;
+		if (future == null || nextGridLevel != level) return null;
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e) {
+			Gdx.app.error("LevelLoader", "Failed to prefetch level " + level, e.getCause());
+			return null;
+		}
+	}
+
 	public GameState getCurrentState() {
 		return gameState;
 	}
@@ -110,6 +198,18 @@ public class GameMain extends Game {
 		gameState = state;
 	}
 
+	@Override
+	public void onGameStateChanged(Grid grid, GameState state) {
+		if (state == GameState.GAMEOVER)
+			actionResolver.showLongToast("No more move left. Game is over!");
+		else if (state == GameState.COMPLETE) {
+			actionResolver.showLongToast("Level comeplete!");
+			if (gameMode == GameMode.CHALLENGE) prefetchNextLevel();
+		}
+		setGameState(state);
+	}
+
+	@Override
 	public GameMode getGameMode() {
 		return gameMode;
 	}
@@ -121,6 +221,10 @@ public class GameMain extends Game {
 	public Grid getGrid() {
 		return grid;
 	}
+
+	public HintEngine getHintEngine() {
+		return hintEngine;
+	}
 	
 	public void exit() {
 		Gdx.app.exit();
@@ -138,6 +242,8 @@ public class GameMain extends Game {
 		// dispose of all the native resources
 		Assets.dispose();
 		gameScreen.dispose();
+		hintEngine.dispose();
+		levelLoader.shutdownNow();
 		Gdx.app.log("DISPOSING", "Released all assets resources");
 	}
 
@@ -11,7 +11,6 @@ import static com.badlogic.gdx.scenes.scene2d.actions.Actions.scaleTo;
 import static com.badlogic.gdx.scenes.scene2d.actions.Actions.sequence;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 import com.badlogic.gdx.Gdx;
@@ -34,7 +33,6 @@ import com.badlogic.gdx.graphics.glutils.FrameBuffer;
 import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.math.Interpolation;
 import com.badlogic.gdx.math.Vector2;
-import com.badlogic.gdx.scenes.scene2d.Actor;
 import com.badlogic.gdx.scenes.scene2d.Group;
 import com.badlogic.gdx.scenes.scene2d.InputEvent;
 import com.badlogic.gdx.scenes.scene2d.InputListener;
@@ -44,8 +42,10 @@ import com.badlogic.gdx.scenes.scene2d.actions.Actions;
 import com.badlogic.gdx.scenes.scene2d.ui.Image;
 import com.badlogic.gdx.scenes.scene2d.ui.Label;
 import com.badlogic.gdx.scenes.scene2d.ui.Label.LabelStyle;
+import com.badlogic.gdx.scenes.scene2d.ui.TextButton;
 import com.badlogic.gdx.scenes.scene2d.utils.DragListener;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
 import com.badlogic.gdx.utils.viewport.ExtendViewport;
 import com.code2play.grid.game.CoinType;
 import com.code2play.grid.game.GameMode;
@@ -53,6 +53,10 @@ import com.code2play.grid.game.GameState;
 import com.code2play.grid.game.Grid;
 import com.code2play.grid.game.GridBox;
 import com.code2play.grid.game.GridBox.Color;
+import com.code2play.grid.game.GridEvents;
+import com.code2play.grid.game.HintEngine.Hint;
+import com.code2play.grid.game.ReplayRecorder;
+import com.code2play.grid.game.Solver;
 import com.code2play.grid.game.Swipe;
 import com.code2play.grid.ui.BlurImage;
 import com.code2play.grid.ui.GameDialog;
@@ -96,9 +100,6 @@ public class GameScreen implements Screen {
 	/** Upper maximum y values (height) in world coordinates of the game screen **/
 	public static final int maxHeight = 1920 ;
 
-	/** Temporary flag for the renderer to know that this colored box will be removed */
-	private static final int REMOVED = -3;
-
 	/** The grid box width **/
 	private float boxWidth;
 
@@ -114,6 +115,9 @@ public class GameScreen implements Screen {
 	/** Calculated coordinates of all the grid boxes for easy reference **/
 	private Map<Integer, Vector2> gridCoordinates;
 
+	/** Image of the colored box currently shown at each grid box index, or null **/
+	private Image[] gridBoxImages;
+
 	/** Group of background images **/
 	private Group backgroundGroup;
 
@@ -126,7 +130,10 @@ public class GameScreen implements Screen {
 	/** Animation time in seconds of the grid movements **/
 	private float gridBoxMoveAnimTime = 0.15f; 
 
-	/** Animation time in seconds in clearing gridboxes **/
+	/** Pause in seconds between the slides of a cascade, while cleared gridboxes disappear **/
+	private float gridBoxCascadeStepTime = 0.35f;
+
+	/** Animation time in seconds of the cascade of the last move after its first slide **/
 	private float gridBoxClearAnimTime = 0f;
 
 	/** Image ID that will be swapped to **/
@@ -164,6 +171,18 @@ public class GameScreen implements Screen {
 	/** UI-swap button */
 	private Image swapBtn;
 
+	/** UI-hint button */
+	private TextButton hintBtn;
+
+	/** Indicates whether a hint is waiting to be shown once found **/
+	private boolean hintRequested;
+
+	/** Records every input of this level for bug reports, null if replays are not saved **/
+	private ReplayRecorder recorder;
+
+	/** File that the replay of the last level played is saved to **/
+	private static final String REPLAY_FILE = "replays/last.rpl";
+
 	/** UI-settings button */
 	private Image settingsBtn;
 
@@ -381,6 +400,7 @@ public class GameScreen implements Screen {
 		// game instance is the same one as the first created
 		game = g;
 		grid = game.getGrid();
+		if (game.saveReplays) recorder = new ReplayRecorder(grid);
 		camera = new OrthographicCamera();
 		//		camera.setToOrtho(true);
 		inMultiplexer = new InputMultiplexer();
@@ -542,6 +562,22 @@ public class GameScreen implements Screen {
 		swapBtnLabel.addActor(swapLabel);
 		swapBtnLabel.addActor(swapBtn);
 
+		// initialize hint button
+		hintBtn = new TextButton("?", Assets.getSkin());
+		hintBtn.setBounds(undoBtn.getX() + undoBtn.getWidth() + 10, undoBtn.getY(), 
+				undoBtn.getHeight()*.8f, undoBtn.getHeight()*.8f);
+		hintBtn.addListener(new InputListener() {
+			public boolean touchDown (InputEvent event, float x, float y, int pointer, int button) {
+				return true;
+			}
+
+			public void touchUp (InputEvent event, float x, float y, int pointer, int button) {
+				if (gridBoxClearAnimTime == 0f) {
+					requestHint();
+				}
+			}
+		});
+
 		// generate move button font
 		// specific to CHALLENGE mode only
 		moveBtnFontParam = new FreeTypeFontParameter();
@@ -718,6 +754,7 @@ public class GameScreen implements Screen {
 		btnGroup.addActor(moveBtnLabel);
 		btnGroup.addActor(undoBtnLabel);
 		btnGroup.addActor(swapBtnLabel);
+		btnGroup.addActor(hintBtn);
 		btnGroup.addActor(settingsBtn);
 
 		hudStage.addActor(btnGroup);
@@ -749,8 +786,10 @@ public class GameScreen implements Screen {
 			roundTime = 0f;
 			removeAllColoredGridBoxes();
 			grid.restoreDefaultState();
+			game.getHintEngine().clear();
 			firstSwapID = -1;
 			secondSwapID = -1;
+			hintRequested = false;
 			forceRender = true;
 			labelPosChanged = false;
 			game.actionResolver.showShortToast("Restarted level");
@@ -759,11 +798,58 @@ public class GameScreen implements Screen {
 
 	/**
 	 * Undo the current move and restore previous game state before the
-	 * move occured
-	 * //TODO
+	 * move occured, then redraw all grid boxes from the restored grid
 	 */
 	private void undoMove() {
-		grid.undoMove();
+		if (grid.undoMove()) {
+			removeAllColoredGridBoxes();
+			firstSwapID = -1;
+			secondSwapID = -1;
+			firstSwapImg = null;
+			hintRequested = false;
+			forceRender = true;
+		}
+	}
+
+	/**
+	 * Starts searching for the best next move in the background.
+	 * The hint is shown once found, unless a move is made first.
+	 */
+	private void requestHint() {
+		if (game.getGameMode() == GameMode.CHALLENGE) {
+			game.getHintEngine().requestHint(grid);
+			hintRequested = true;
+		}
+	}
+
+	/**
+	 * Shows the hint found for the current state of the grid. The boxes of a
+	 * hinted swap blink, and a hinted swipe is shown as a toast.
+	 * @param hint
+	 */
+	private void showHint(Hint hint) {
+		Solver.Move move = hint.getMove();
+		if (move == null && hint.isTimedOut()) {
+			game.actionResolver.showShortToast("No hint found yet, ask again to search longer");
+		}
+		else if (move == null) {
+			game.actionResolver.showShortToast("No hint available");
+		}
+		else if (move.isSwap()) {
+			blinkGridBoxImage(gridBoxImages[move.getFirstId()-1]);
+			blinkGridBoxImage(gridBoxImages[move.getSecondId()-1]);
+			game.actionResolver.showShortToast("Hint: swap the blinking boxes");
+		}
+		else {
+			game.actionResolver.showShortToast("Hint: swipe " + 
+					move.getDirection().toString().toLowerCase());
+		}
+	}
+
+	private void blinkGridBoxImage(Image img) {
+		if (img != null) {
+			img.addAction(sequence(alpha(.3f, .2f), alpha(1f, .2f), alpha(.3f, .2f), alpha(1f, .2f)));
+		}
 	}
 
 	/**
@@ -791,6 +877,7 @@ public class GameScreen implements Screen {
 
 		// create blank grids and initializes their positions
 		createGridFromMargins(0.05f, 0.25f, 20f, 20f);
+		gridBoxImages = new Image[grid.getSize()];
 
 		// add all group to the gameStage
 		gameStage.addActor(backgroundGroup);
@@ -891,7 +978,11 @@ public class GameScreen implements Screen {
 			for (int row = 0; row < grid.getWidth(); row++) {
 				Image blankBox = new Image( Assets.getBlankBox() );
 				com.badlogic.gdx.graphics.Color c = parseColor(blankBoxColor);
-				blankBox.setColor(c.r, c.g, c.b, .22f);
+				// blocked grid boxes are drawn dark and solid, so they stand out from empty ones
+				if (grid.isBlocked(row+(grid.getWidth()*col)+1))
+					blankBox.setColor(c.r*.4f, c.g*.4f, c.b*.4f, .9f);
+				else
+					blankBox.setColor(c.r, c.g, c.b, .22f);
 				blankBox.setSize(boxWidth, boxHeight);
 				float x = (widthMargin+widthSpacing) + ((boxWidth+widthSpacing)*row);
 				float y = (startingHeight-heightSpacing-boxHeight) - ((boxHeight+heightSpacing)*col);
@@ -984,9 +1075,7 @@ public class GameScreen implements Screen {
 	float endTime = 0f;
 	float stateChangeWaitTime = .7f;
 	float firstLoadDelay = 1.5f;
-	Swipe prevSwipeDir = null;
 	int prevMovesLeft = -1;
-	boolean justSwiped = false;
 	boolean hasBlurred = false;
 	@Override
 	/**
@@ -1021,7 +1110,7 @@ public class GameScreen implements Screen {
 			}
 			
 			// process input
-			if ( (swipeDir != null || grid.getNumColorGroups() > 0 || hasSwapped) 
+			if ( (swipeDir != null || hasSwapped) 
 
 					//disable swipe directions
 					//proceed when animation finishes for all gridboxes (after animationTime)
@@ -1031,27 +1120,10 @@ public class GameScreen implements Screen {
 					) {
 
 				// update gridbox - swipe
+				// the grid resolves every cascade of the move at once
 				if (!hasSwapped) {
-					if (grid.getNumColorGroups() > 0 && prevSwipeDir != null) {
-						if (justSwiped) {
-							grid.updateMoveCount();
-							justSwiped = false;
-						}
-						grid.update(delta, prevSwipeDir);
-					}
-					else if (swipeDir != null) {
-						if (grid.update(delta, swipeDir))
-							grid.updateMoveCount();
-					}
-
-					// we add slight delay for the animation of claring gridboxes to proceed
-					// before continuing
-					if (grid.getNumColorGroups() > 0)
-						gridBoxClearAnimTime = 0.35f;
-					else
-						gridBoxClearAnimTime = 0f;
-
-					prevSwipeDir = swipeDir == null ? prevSwipeDir : swipeDir;
+					if (grid.update(delta, swipeDir))
+						grid.updateMoveCount();
 				}
 
 				// update gridbox - swap
@@ -1060,17 +1132,20 @@ public class GameScreen implements Screen {
 					grid.updateMoveCount();
 					firstSwapID = -1;
 					secondSwapID = -1;
-					prevSwipeDir = null;
-					justSwiped = true;
 				}
 
 				// process moves to be rendered
 				// and set necessary actions for gameStage to draw
 				drawGrid(grid);
 
+				// wait for every step of the cascade to be animated before taking more input
+				gridBoxClearAnimTime = (grid.getEvents().getNumSteps()-1) * 
+						(gridBoxMoveAnimTime + gridBoxCascadeStepTime);
+
 				// reset values
 				swipeDir = null;
 				hasSwapped = false;
+				hintRequested = false;
 
 				//				System.out.println(grid.getGrid());
 				deltaTime = 0f;
@@ -1082,13 +1157,24 @@ public class GameScreen implements Screen {
 				// check input for tap on the colored tiles
 				// if there is a tap, then we don't process swipe direction events
 				// until the colored tile is tapped again
-				if (grid.updateGameState(endTime, stateChangeWaitTime)) {
+				if (deltaTime >= gridBoxMoveAnimTime + gridBoxClearAnimTime)
+					gridBoxClearAnimTime = 0f;
+				if (gridBoxClearAnimTime == 0f && grid.updateGameState(endTime, stateChangeWaitTime)) {
 					setGameElementsTouchable(false);
 					endTime += delta;
 				}
 				firstLoadDelay -= delta;
 			}
 
+			// show the hint once the background search is done
+			if (hintRequested) {
+				Hint hint = game.getHintEngine().getHint(grid);
+				if (hint != null) {
+					hintRequested = false;
+					showHint(hint);
+				}
+			}
+
 			// update the gameStage and draw accordingly
 			gameStage.act(delta);
 			gameStage.draw();
@@ -1414,187 +1500,182 @@ public class GameScreen implements Screen {
 	 * Removes all colored grid boxes onscreen
 	 */
 	private void removeAllColoredGridBoxes() {
-		Iterator<Actor> iter = gridGroup.getChildren().iterator();
-		while (iter.hasNext()) {
-			Actor gridBoxImg = iter.next();
-			GridBox temp = (GridBox) gridBoxImg.getUserObject();
-			if (temp != null) {
-				iter.remove();
+		for (int i = 0; i < gridBoxImages.length; i++) {
+			if (gridBoxImages[i] != null) {
+				gridBoxImages[i].remove();
+				gridBoxImages[i] = null;
 			}
 		}
 	}
 
 	/**
 	 * Renders all the stuff that needs to be drawn from the grid
+	 * by applying the events of its last update in order. Every step of 
+	 * a cascade is animated once the step before it has finished.
 	 * @param grid
 	 */
 	Image firstSwapImg = null;
 	float delaySpawnTime = 0f;
 	private void drawGrid(Grid grid) {
 		delaySpawnTime = 0f;
-		Iterator<Actor> iter = null;
-		for (GridBox gridBox : grid.getGrid()) {
-			if (!gridBox.isEmpty()) {
+		GridEvents events = grid.getEvents();
+		for (int step = 0; step < events.getNumSteps(); step++) {
+			float stepDelay = step*(gridBoxMoveAnimTime + gridBoxCascadeStepTime);
+			for (int i = events.getStepStart(step); i < events.getStepEnd(step); i++) {
+				int from = events.getFrom(i);
+				int to = events.getTo(i);
+				switch(events.getType(i)) {
 
 				// recently spawned
-				if (gridBox.getPrevId() == -1) {
-					Image gridBoxImg = new Image( Assets.getColoredBox(gridBox.getColor()) );
-					//					newGridBox.setSize(boxWidth, boxHeight);
-					gridBoxImg.setSize(1, 1);
-					Vector2 pos = gridCoordinates.get(gridBox.getId()-1);
-					gridBoxImg.setPosition(pos.x + (boxWidth/2f), pos.y + (boxHeight/2));
-					gridBoxImg.addAction(
-							sequence(
-									delay(delaySpawnTime),
-							parallel(
-									scaleTo(boxWidth, boxHeight, gridBoxMoveAnimTime, Interpolation.linear),
-									moveTo(pos.x, pos.y, gridBoxMoveAnimTime, Interpolation.linear)
-									)
-							));
-					delaySpawnTime += .1f;
-					gridBox.setPrevId(-2); 										// not -1 again to avoid replaying spawning animation
-					//					System.out.println("Added Color " + gridBox.getColor());
-					gridBoxImg.setUserObject( new GridBox(gridBox.getId(), gridBox.getColor()) );
-
-					// add touch listener
-					gridBoxImg.addListener(new InputListener() {
-
-						@Override
-						public boolean touchDown(InputEvent event, float x, float y,
-								int pointer, int button) {
-							hasDragged = false;
-							return true;
-						}
-
-						@Override
-						public void touchUp (InputEvent event, float x, float y, 
-								int pointer, int button) {
-							
-							// only display visual selecting when number of swaps are available
-							// and all boxes spawned
-							if ((getNumSwaps() > 0) && 
-									(roundTime > delaySpawnTime)) {
-
-								Image img = (Image) event.getListenerActor();
-								int touchID = ((GridBox)img.getUserObject()).getId();
-
-								// if player has not selected any other tile before this
-								// make this image ID the first swap image ID
-								if (firstSwapID == -1 && !hasDragged) {
-									img.addAction(
-											alpha (.3f, .2f)
-											);
-									firstSwapID = touchID;
-									hasDragged = false;
-									firstSwapImg = img;
-								}
-
-								// if player has selected the same image that was selected as the first swap,
-								// reset the first swap image
-								else if (firstSwapID == touchID) {
-									img.addAction(
-											alpha (1f, .2f)
-											);
-									firstSwapID = -1;
-									firstSwapImg = null;
-								}
-
-								// if the first swap image has already been selected, then set this image
-								// to be the second swap and change their previous IDs accordingly
-								else if (firstSwapID != -1) {
-									secondSwapID = touchID;
-
-									// remove effect for the first swap image
-									firstSwapImg.addAction(
-											alpha (1f, .2f)
-											);
-									hasSwapped = true;
-
-									Gdx.app.log("Swap 2", "Swap " + firstSwapID + " with " + secondSwapID);
-								}
-
-
-							}
-						}
-					});
-					gridGroup.addActor(gridBoxImg);
-				}
+				case GridEvents.SPAWN:
+					gridBoxImages[to] = createGridBoxImage(to, events.getColor(i), stepDelay);
+					gridGroup.addActor(gridBoxImages[to]);
+					break;
 
 				// recently moved
-				else {
-
-					// get gameStage actor under gridGroup of userobjecttype with id = move.originId and 
-					// update it to move.destId
-					// add move transition animation
-					// cannot call removeActor while iterating
-					iter = gridGroup.getChildren().iterator();
-					while (iter.hasNext()) {
-						Actor gridBoxImg = iter.next();
-						GridBox temp = (GridBox) gridBoxImg.getUserObject();
-						if (temp != null) {
-							if ( temp.getId() == gridBox.getPrevId()  
-									&& temp.getColor() == gridBox.getColor()
-									//									&& temp.getPrevId() != REMOVED 
-									) {
-								Vector2 pos = gridCoordinates.get(gridBox.getId()-1);
-								gridBoxImg.addAction(
-										moveTo(pos.x, pos.y, gridBoxMoveAnimTime, Interpolation.linear)
-										);
-								//								System.out.println("Move from " + (gridBox.getPrevId()-1) + " to " + (gridBox.getId()-1));
-								gridBox.setPrevId(-2);							// not -1 again to avoid replaying spawning animation
-
-								// update reference object
-								temp.setPrevId(gridBox.getPrevId());
-								temp.setId(gridBox.getId());
-								gridBoxImg.setUserObject(temp);
-							}
-
-							// eliminates old gridbox color in group
-							//TODO BUG: when new gridbox of the same color is moved to
-							// the tile that will be removed
-							else if ( temp.getId() == gridBox.getId()
-									&& temp.getColor() != gridBox.getColor() ) {
-								temp.setPrevId(REMOVED);							// mark as removed 
-								if (gridBox.getColor() == Color.REMOVED) {
-									gridBox.setColor(Color.NONE);
-									gridBox.setPrevId(-1);
-								}
-							}
-						}
+				case GridEvents.MOVE:
+					gridBoxImages[to] = gridBoxImages[from];
+					gridBoxImages[from] = null;
+					moveGridBoxImage(gridBoxImages[to], to, stepDelay);
+					break;
+
+				// eliminates old gridbox color in group
+				// the image may still be sliding there from the step before
+				case GridEvents.REMOVE:
+					Image removedImg = gridBoxImages[from];
+					gridBoxImages[from] = null;
+					if (removedImg != null) {
+						Vector2 pos = gridCoordinates.get(from);
+						removedImg.addAction(
+								sequence(
+								delay(stepDelay),
+								parallel(
+										scaleTo(0, 0, .08f, Interpolation.linear),
+										moveTo(pos.x + boxHeight/2, pos.y + boxWidth/2, 
+												.08f, Interpolation.linear)
+										),
+								removeActor()
+								));
 					}
+					break;
+
+				// recently swapped
+				case GridEvents.SWAP:
+					Image swappedImg = gridBoxImages[to];
+					gridBoxImages[to] = gridBoxImages[from];
+					gridBoxImages[from] = swappedImg;
+					moveGridBoxImage(gridBoxImages[to], to, stepDelay);
+					moveGridBoxImage(gridBoxImages[from], from, stepDelay);
+					break;
 				}
 			}
 		}
+	}
 
-		// remove all grids marked as removed
-		iter = gridGroup.getChildren().iterator();
-		while (iter.hasNext()) {
-			Actor gridBoxImg = iter.next();
-			GridBox temp = (GridBox) gridBoxImg.getUserObject();
-			if (temp != null) 
-				if (temp.getPrevId() == REMOVED) {
-					// if remove action is not set for this gridbox, add it
-					if (!temp.removed) {
-						gridBoxImg.addAction(
-								parallel(
-										scaleTo(0, 0, .08f, Interpolation.linear),
-										moveTo(gridBoxImg.getX() + boxHeight/2, gridBoxImg.getY() + boxWidth/2, 
-												.08f, Interpolation.linear)
-										));
-						temp.removed = true;
-						//						Gdx.app.log("ADD ACTION", "GRID ID " + temp.getId() + " ADDED ACTION! (" 
-						//								+ gridBoxClearAnimTime + ")");
+	/**
+	 * Slides a grid box image to the grid box index specified after a delay 
+	 * and updates its reference object
+	 * @param gridBoxImg
+	 * @param index
+	 * @param delayTime Seconds to wait before sliding
+	 */
+	private void moveGridBoxImage(Image gridBoxImg, int index, float delayTime) {
+		if (gridBoxImg == null) return;
+		Vector2 pos = gridCoordinates.get(index);
+		gridBoxImg.addAction(
+				sequence(
+						delay(delayTime),
+						moveTo(pos.x, pos.y, gridBoxMoveAnimTime, Interpolation.linear)
+						));
+		((GridBox) gridBoxImg.getUserObject()).setId(index+1);
+	}
+
+	/**
+	 * Creates the image of a newly spawned grid box, with its spawning animation 
+	 * and touch listener for swapping
+	 * @param index
+	 * @param color
+	 * @param stepDelay Seconds to wait for the step of the cascade it spawns in
+	 * @return
+	 */
+	private Image createGridBoxImage(int index, Color color, float stepDelay) {
+		Image gridBoxImg = new Image( Assets.getColoredBox(color) );
+		//					newGridBox.setSize(boxWidth, boxHeight);
+		gridBoxImg.setSize(1, 1);
+		Vector2 pos = gridCoordinates.get(index);
+		gridBoxImg.setPosition(pos.x + (boxWidth/2f), pos.y + (boxHeight/2));
+		gridBoxImg.addAction(
+				sequence(
+						delay(stepDelay + delaySpawnTime),
+				parallel(
+						scaleTo(boxWidth, boxHeight, gridBoxMoveAnimTime, Interpolation.linear),
+						moveTo(pos.x, pos.y, gridBoxMoveAnimTime, Interpolation.linear)
+						)
+				));
+		delaySpawnTime += .1f;
+		gridBoxImg.setUserObject( new GridBox(index+1, color) );
+		// add touch listener
+		gridBoxImg.addListener(new InputListener() {
+
+			@Override
+			public boolean touchDown(InputEvent event, float x, float y,
+					int pointer, int button) {
+				hasDragged = false;
+				return true;
+			}
+
+			@Override
+			public void touchUp (InputEvent event, float x, float y, 
+					int pointer, int button) {
+				
+				// only display visual selecting when number of swaps are available
+				// and all boxes spawned
+				if ((getNumSwaps() > 0) && 
+						(roundTime > delaySpawnTime)) {
+
+					Image img = (Image) event.getListenerActor();
+					int touchID = ((GridBox)img.getUserObject()).getId();
+
+					// if player has not selected any other tile before this
+					// make this image ID the first swap image ID
+					if (firstSwapID == -1 && !hasDragged) {
+						img.addAction(
+								alpha (.3f, .2f)
+								);
+						firstSwapID = touchID;
+						hasDragged = false;
+						firstSwapImg = img;
 					}
 
-					// else if action is completed, remove it from list to be rendered
-					else {
-						if (gridBoxImg.getActions().size == 0) {
-							//							Gdx.app.log("REMOVE", "GRID ID " + temp.getId() + " REMOVED!");
-							iter.remove();
-						}
+					// if player has selected the same image that was selected as the first swap,
+					// reset the first swap image
+					else if (firstSwapID == touchID) {
+						img.addAction(
+								alpha (1f, .2f)
+								);
+						firstSwapID = -1;
+						firstSwapImg = null;
 					}
+
+					// if the first swap image has already been selected, then set this image
+					// to be the second swap and change their previous IDs accordingly
+					else if (firstSwapID != -1) {
+						secondSwapID = touchID;
+
+						// remove effect for the first swap image
+						firstSwapImg.addAction(
+								alpha (1f, .2f)
+								);
+						hasSwapped = true;
+
+						Gdx.app.log("Swap 2", "Swap " + firstSwapID + " with " + secondSwapID);
+					}
+
+
 				}
-		}
+			}
+		});
+		return gridBoxImg;
 	}
 
 	@Override
@@ -1622,9 +1703,24 @@ public class GameScreen implements Screen {
 	public void resume() {
 	}
 
+	/**
+	 * Stops recording and saves the replay of this level. A replay that
+	 * cannot be written is only logged, so that disposing never fails.
+	 */
+	private void saveReplay() {
+		recorder.stop();
+		try {
+			recorder.getReplay().write(Gdx.files.local(REPLAY_FILE));
+		}
+		catch (GdxRuntimeException e) {
+			Gdx.app.error("Grid", "Could not save replay to " + REPLAY_FILE, e);
+		}
+	}
+
 	@Override
 	// never called automatically
 	public void dispose() {
+		if (recorder != null) saveReplay();
 		cleanup();
 		gameStage.dispose();
 		hudStage.dispose();
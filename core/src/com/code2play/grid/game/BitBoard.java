@@ -0,0 +1,397 @@
+package com.code2play.grid.game;
+
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * Packed representation of a grid that holds at most 64 grid boxes (up to 8x8).
+ * Each color is stored as one bit mask, with one extra mask for all occupied
+ * grid boxes, so that moving boxes and finding color groups are done with
+ * shifts and masks instead of walking through grid box objects.
+ * Bit i of every mask refers to the grid box with id i+1.
+ */
+public class BitBoard {
+
+	/** Maximum number of grid boxes a packed board can hold **/
+	public static final int MAX_CELLS = 64;
+
+	/** First and last ordinal of the colors stored as masks **/
+	private static final int FIRST_COLOR = Color.BLUE.ordinal();
+	private static final int LAST_COLOR = Color.YELLOW.ordinal();
+
+	/** Cached color values to avoid allocating a new array on every lookup **/
+	private static final Color[] COLORS = Color.values();
+
+	private final int width;
+	private final int height;
+
+	/** Number of longs that save writes for every board **/
+	static final int STATE_SIZE = LAST_COLOR - FIRST_COLOR + 4;
+
+	/** Mask of every grid box on this board **/
+	private final long full;
+
+	/** Mask of every grid box that is not blocked, which is all that boxes can move into **/
+	private long open;
+
+	/** Mask of the leftmost column **/
+	private final long leftColumn;
+
+	/** Mask of the rightmost column **/
+	private final long rightColumn;
+
+	/** One mask per color, indexed by color ordinal **/
+	private final long[] colors;
+
+	/** Mask of all grid boxes that have a color **/
+	private long occupied;
+
+	/** Mask of grid boxes that were removed by the last move and not filled again **/
+	private long removed;
+
+	/** Mask of every grid box whose box was removed by the last move **/
+	private long cleared;
+
+	/** Number of boxes removed by the last move **/
+	private int numRemoved;
+
+	/** Mask of grid boxes that belong to a group of at least the minimum chain size **/
+	private long chained;
+
+	/** Mask of occupied grid boxes at the start of the last move, after removal **/
+	private long movedFrom;
+
+	/**
+	 * Returns whether or not a grid of the specified dimension can be packed
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static boolean fits(int width, int height) {
+		return width > 0 && height > 0 && width*height <= MAX_CELLS;
+	}
+
+	/**
+	 * Constructs an initially empty board of dimension specified
+	 * by the width and height
+	 * @param width Number of gridboxes wide
+	 * @param height Number of gridboxes high
+	 */
+	public BitBoard(int width, int height) {
+		if (!fits(width, height))
+			throw new IllegalArgumentException("Board of " + width + "x" + height +
+					" does not fit in " + MAX_CELLS + " cells");
+		this.width = width;
+		this.height = height;
+		int cells = width*height;
+		full = cells == MAX_CELLS ? -1L : (1L << cells) - 1;
+		open = full;
+
+		long left = 0L;
+		long right = 0L;
+		for (int row = 0; row < height; row++) {
+			left |= 1L << (row*width);
+			right |= 1L << (row*width + width-1);
+		}
+		leftColumn = left;
+		rightColumn = right;
+		colors = new long[COLORS.length];
+	}
+
+	/**
+	 * Sets the grid boxes that are blocked. Blocked grid boxes are static,
+	 * so they stay blocked when the board is cleared.
+	 * @param blocked Mask of the blocked grid boxes
+	 */
+	public void setBlocked(long blocked) {
+		open = full & ~blocked;
+	}
+
+	/**
+	 * Empties every grid box on this board
+	 */
+	public void clear() {
+		for (int c = 0; c < colors.length; c++)
+			colors[c] = 0L;
+		occupied = 0L;
+		removed = 0L;
+		cleared = 0L;
+		numRemoved = 0;
+		chained = 0L;
+		movedFrom = 0L;
+	}
+
+	/**
+	 * Writes the boxes, the removed grid boxes and the chained groups of this board
+	 * into STATE_SIZE longs of the array specified, so that many boards of the same
+	 * dimension can be kept in one array and stepped with a single packed board
+	 * @param state
+	 * @param offset
+	 */
+	void save(long[] state, int offset) {
+		for (int c = FIRST_COLOR; c <= LAST_COLOR; c++)
+			state[offset++] = colors[c];
+		state[offset++] = occupied;
+		state[offset++] = removed;
+		state[offset] = chained;
+	}
+
+	/**
+	 * Sets this board to the state written by save. Blocked grid boxes are kept.
+	 * @param state
+	 * @param offset
+	 */
+	void load(long[] state, int offset) {
+		for (int c = FIRST_COLOR; c <= LAST_COLOR; c++)
+			colors[c] = state[offset++];
+		occupied = state[offset++];
+		removed = state[offset++];
+		chained = state[offset];
+	}
+
+	/**
+	 * Returns the mask of the grid boxes chained to be removed on the next move
+	 * @return
+	 */
+	long getChained() {
+		return chained;
+	}
+
+	/**
+	 * Sets the grid boxes chained to be removed on the next move, 
+	 * as returned by getChained
+	 * @param chained
+	 */
+	void setChained(long chained) {
+		this.chained = chained;
+	}
+
+	/**
+	 * Returns the color at the grid box index specified
+	 * @param index Zero-based index (id-1) of the grid box
+	 * @return
+	 */
+	public Color get(int index) {
+		long bit = 1L << index;
+		if ((removed & bit) != 0) return Color.REMOVED;
+		if ((occupied & bit) == 0) return Color.NONE;
+		for (int c = FIRST_COLOR; c <= LAST_COLOR; c++) {
+			if ((colors[c] & bit) != 0) return COLORS[c];
+		}
+		return Color.NONE;
+	}
+
+	/**
+	 * Sets the color at the grid box index specified. Group membership of
+	 * the grid box is left untouched, as it is with grid box objects.
+	 * @param index Zero-based index (id-1) of the grid box
+	 * @param color
+	 */
+	public void set(int index, Color color) {
+		long bit = 1L << index;
+		for (int c = FIRST_COLOR; c <= LAST_COLOR; c++)
+			colors[c] &= ~bit;
+		occupied &= ~bit;
+		removed &= ~bit;
+
+		if (color == Color.REMOVED)
+			removed |= bit;
+		else if (color != Color.NONE) {
+			colors[color.ordinal()] |= bit;
+			occupied |= bit;
+		}
+	}
+
+	/**
+	 * Removes all boxes that belong to a chained group, then moves all the remaining
+	 * boxes in the direction specified until they are stopped by the edge or another box
+	 * @param direction
+	 * @return True if any box is removed or moved
+	 */
+	public boolean move(Swipe direction) {
+		removed = occupied & chained;
+		cleared = removed;
+		numRemoved = Long.bitCount(removed);
+		chained = 0L;
+		if (removed != 0) {
+			for (int c = FIRST_COLOR; c <= LAST_COLOR; c++)
+				colors[c] &= ~removed;
+			occupied &= ~removed;
+		}
+		movedFrom = occupied;
+
+		// every box whose neighbor in the swipe direction is empty moves one step at a time,
+		// so that boxes never overtake each other within a line. Blocked grid boxes are 
+		// never empty, so they split a line into segments that are compacted at once.
+		Swipe opposite = opposite(direction);
+		boolean hasMoved = removed != 0;
+		long movers = occupied & shift(open & ~occupied, opposite);
+		while (movers != 0) {
+			for (int c = FIRST_COLOR; c <= LAST_COLOR; c++) {
+				long m = colors[c] & movers;
+				if (m != 0) colors[c] = (colors[c] ^ m) | shift(m, direction);
+			}
+			occupied = (occupied ^ movers) | shift(movers, direction);
+			movers = occupied & shift(open & ~occupied, opposite);
+			hasMoved = true;
+		}
+
+		// removed grid boxes that got filled by another box are no longer marked
+		removed &= ~occupied;
+		return hasMoved;
+	}
+
+	/**
+	 * Finds all the non-diagonal same-color groups and marks the ones with
+	 * at least minChainSize members to be removed on the next move
+	 * @param minChainSize
+	 * @return Number of groups with at least minChainSize members
+	 */
+	public int updateGroups(int minChainSize) {
+		int numGroups = 0;
+		chained = 0L;
+		for (int c = FIRST_COLOR; c <= LAST_COLOR; c++) {
+			long remaining = colors[c];
+			while (remaining != 0) {
+				long group = remaining & -remaining;
+				long grown = group;
+				do {
+					group = grown;
+					grown = (group | shift(group, Swipe.LEFT) | shift(group, Swipe.RIGHT)
+							| shift(group, Swipe.UP) | shift(group, Swipe.DOWN)) & colors[c];
+				} while (grown != group);
+
+				if (Long.bitCount(group) >= minChainSize) {
+					chained |= group;
+					numGroups++;
+				}
+				remaining &= ~group;
+			}
+		}
+		return numGroups;
+	}
+
+	/**
+	 * Fills in, for every grid box, the index that its box came from in the last move.
+	 * Boxes keep their order within a line, so the k-th box of a line after the move
+	 * is the k-th box of the same line before it.
+	 * @param direction Direction of the last move
+	 * @param sources Array of at least width*height to fill. Empty grid boxes are set to -1
+	 */
+	public void getSources(Swipe direction, int[] sources) {
+		boolean horizontal = direction == Swipe.LEFT || direction == Swipe.RIGHT;
+		int numLines = horizontal ? height : width;
+		int length = horizontal ? width : height;
+		int step = horizontal ? 1 : width;
+		for (int line = 0; line < numLines; line++) {
+			int start = horizontal ? line*width : line;
+			int from = start;
+			for (int k = 0, index = start; k < length; k++, index += step) {
+				if ((occupied & (1L << index)) == 0) {
+					sources[index] = -1;
+					continue;
+				}
+				while ((movedFrom & (1L << from)) == 0)
+					from += step;
+				sources[index] = from;
+				from += step;
+			}
+		}
+	}
+
+	/**
+	 * Returns the mask of grid boxes removed by the last move
+	 * @return
+	 */
+	public long getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Returns the mask of grid boxes whose box was removed by the last move,
+	 * including the ones filled again by another box
+	 * @return
+	 */
+	public long getCleared() {
+		return cleared;
+	}
+
+	/**
+	 * Returns the number of boxes removed by the last move
+	 * @return
+	 */
+	public int getNumRemoved() {
+		return numRemoved;
+	}
+
+	/**
+	 * Returns the mask of grid boxes that are empty, not counting 
+	 * the ones removed by the last move or blocked
+	 * @return
+	 */
+	public long getEmpty() {
+		return open & ~occupied & ~removed;
+	}
+
+	/**
+	 * Returns the index of the k-th lowest set bit of the mask, 
+	 * found by halving the mask with bit counts instead of walking every bit
+	 * @param mask
+	 * @param k Zero-based rank, less than the number of set bits in mask
+	 * @return
+	 */
+	public static int select(long mask, int k) {
+		int index = 0;
+		for (int half = 32; half > 0; half >>= 1) {
+			long low = mask & ((1L << half) - 1);
+			int count = Long.bitCount(low);
+			if (k >= count) {
+				k -= count;
+				mask >>>= half;
+				index += half;
+			}
+			else 
+				mask = low;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the mask of all grid boxes that have a color
+	 * @return
+	 */
+	public long getOccupied() {
+		return occupied;
+	}
+
+	/**
+	 * Shifts every bit of the mask one grid box toward the direction specified,
+	 * dropping the ones that would leave the board
+	 */
+	private long shift(long mask, Swipe direction) {
+		switch (direction) {
+		case LEFT:
+			return (mask & ~leftColumn) >>> 1;
+		case RIGHT:
+			return (mask & ~rightColumn) << 1;
+		case UP:
+			return mask >>> width;
+		case DOWN:
+			return (mask << width) & full;
+		default:
+			return 0L;
+		}
+	}
+
+	private static Swipe opposite(Swipe direction) {
+		switch (direction) {
+		case LEFT:
+			return Swipe.RIGHT;
+		case RIGHT:
+			return Swipe.LEFT;
+		case UP:
+			return Swipe.DOWN;
+		default:
+			return Swipe.UP;
+		}
+	}
+}
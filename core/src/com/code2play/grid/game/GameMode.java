@@ -1,5 +1,14 @@
 package com.code2play.grid.game;
 
-public enum GameMode {
-	CLASSIC, CHALLENGE
+/**
+ * Game modes. Each mode is also the default rules of that mode, 
+ * so a grid can be played without a game, eg. new Grid(GameMode.CLASSIC, 4, 4)
+ */
+public enum GameMode implements GridRules {
+	CLASSIC, CHALLENGE;
+
+	@Override
+	public GameMode getGameMode() {
+		return this;
+	}
 }
@@ -1,12 +1,10 @@
 package com.code2play.grid.game;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 
 import com.badlogic.gdx.files.FileHandle;
-import com.badlogic.gdx.utils.Array;
-import com.code2play.grid.GameMain;
 import com.code2play.grid.game.Swipe;
 import com.code2play.grid.game.GridBox.Color;
 
@@ -20,32 +18,17 @@ import com.code2play.grid.game.GridBox.Color;
  */
 public class Grid {
 
-	/* State of the game */
-	private GameMain game;
+	/* Rules this grid is played by */
+	private GridRules rules;
+
+	/* Receives the game state transitions, if any */
+	private GridListener listener;
 
 	/* Current level */
 	private int level;
 
 	/** Initial game state (from level load in CHALLENGE MODE) **/
-	private List<GridBox> defaultGrid;
-
-	/** Initial numMovesLeft **/
-	private int defaultMovesLeft;
-
-	/** Initial minimum moveleft to have to receive Gold reward */
-	private int defaultMinGoldMovesLeft;
-
-	/** Initial minimum moveleft to have to receive Silver reward */
-	private int defaultMinSilverMovesLeft;
-
-	/** Iniitial maxLevelTime **/
-	private float defaultLevelTime;
-
-	/** Initial swaps left **/
-	private int defaultSwapsLeft;
-
-	/** Initial number of spawned colored boxes **/
-	private int defaultNumSpawned;
+	private LevelTemplate template;
 
 	/* Number of maximum moves allowed before gameover */
 	private int numMovesLeft;			
@@ -65,22 +48,115 @@ public class Grid {
 
 	/* Number of undo moves left (max is 9) */
 	private int undoCount;
+
+	/** Maximum number of moves that can be undone in a row **/
+	private static final int MAX_UNDO = 9;
+
+	/** 
+	 * Ring buffer of snapshots taken before each swipe or swap. Board colors of every 
+	 * snapshot are stored one after another as color ordinals, next to the chained 
+	 * gridboxes, the counters and the random state. It has one slot more than can be 
+	 * undone, which the next snapshot is written into, so a move that changes nothing 
+	 * never overwrites a kept snapshot. Everything is allocated once with the board.
+	 */
+	private byte[] undoBoards;
+	private boolean[] undoChained;
+	private int[] undoMovesLeft;
+	private int[] undoSwapsLeft;
+	private int[] undoNumSpawned;
+	private int[] undoNumGroups;
+	private byte[] undoCoinTypes;
+	private long[] undoRandomStates;
+
+	/** Slot of the next snapshot to write, and number of snapshots in the buffer **/
+	private int undoHead;
+	private int undoSize;
 	
 	/* Current coin type */
 	private CoinType coinType;
 
 	/* all the gridboxes in this grid */
 	private List<GridBox> grid;
+
+	/** Same gridboxes as in the list, indexed by id-1 for the move kernel **/
+	private GridBox[] boxes;
 	private int width;
 	private int height;
 
-	private Random random;
+	/** Whether or not every grid box is blocked, null if none is **/
+	private boolean[] blocked;
+	private int numBlocked;
+
+	/** Hash of the indexes of the blocked grid boxes, 0 if none is **/
+	private long blockedHash;
+
+	private GridRandom random;
+
+	/** Records the inputs of this grid into a replay, if any **/
+	private ReplayRecorder recorder;
 	private int numBoxSpawned;
 
-	private Array<Group> colorGroups;
-	private static final int MIN_CHAIN_SIZE = 3;
+	/** Cached enum values to avoid allocating a new array on every spawn and undo **/
+	private static final Color[] COLORS = Color.values();
+	private static final CoinType[] COIN_TYPES = CoinType.values();
+
+	/** Number of same-color boxes a group needs to be cleared, unless the level sets another **/
+	public static final int DEFAULT_MIN_CHAIN_SIZE = 3;
+
+	/** Number of same-color boxes a group needs to be cleared in this level **/
+	private int minChainSize = DEFAULT_MIN_CHAIN_SIZE;
 	private int numMinChainGroup;
 
+	/** Group label of each gridbox, which is the index of the group's root gridbox,
+	 * or -1 if the gridbox has no color **/
+	private int[] labels;
+
+	/** Number of members of each group, indexed by the group's root gridbox **/
+	private int[] groupSizes;
+
+	/** Gridboxes whose color changed since groups were last updated **/
+	private int[] changed;
+	private boolean[] isChanged;
+	private int numChanged;
+
+	/** Gridboxes whose old group was dropped and need to be relabeled **/
+	private int[] pending;
+	private int numPending;
+
+	/** Work stack for walking through groups **/
+	private int[] stack;
+
+	/** 
+	 * Zobrist key of every color at every grid box, indexed by index*COLORS.length + ordinal.
+	 * Keys only depend on the grid dimension, so equal boards of the same size always 
+	 * hash the same, even across grid instances.
+	 */
+	private long[] zobristKeys;
+
+	/** Zobrist hash of the colors on the board, kept up to date on every change **/
+	private long hash;
+
+	/** Events of the last update, for the renderer to apply **/
+	private GridEvents events;
+
+	/** Indices of all empty gridboxes, in no particular order **/
+	private int[] freeCells;
+	private int numFree;
+
+	/** Position of each gridbox in freeCells, or -1 if it is not empty **/
+	private int[] freeSlots;
+
+	/** Gridboxes marked REMOVED by the last move, to be emptied on the next one **/
+	private int[] removedCells;
+	private int numRemoved;
+
+	/** Packed board used in place of the grid box objects for moves and groups, 
+	 * null if this grid is too large to be packed **/
+	private BitBoard bits;
+
+	/** Index that each grid box came from in the last packed move **/
+	private int[] sources;
+
 
 
 	/******************************************************************************************/
@@ -92,8 +168,8 @@ public class Grid {
 	 * @param width Number of gridboxes wide
 	 * @param height Number of gridboxes high
 	 */
-	public Grid(GameMain g, int width, int height) {
-		this(g);
+	public Grid(GridRules rules, int width, int height) {
+		this(rules);
 		System.out.println("Initializing grid with dimension " + 
 				width + "x" + height);
 		int totalNumBox = width*height;
@@ -107,12 +183,22 @@ public class Grid {
 			GridBox box = new GridBox(currId);
 			grid.add(box);
 		}
-		colorGroups = new Array<Group>();
+		boxes = grid.toArray(new GridBox[totalNumBox]);
+		initBoard();
+	}
+
+	private Grid(GridRules rules) {
+		this.rules = rules;
+		random = new GridRandom();
 	}
 
-	private Grid(GameMain g) {
-		game = g;
-		random = new Random();
+	/**
+	 * Constructs a grid in the starting state of a level
+	 * @param template
+	 */
+	public Grid(GridRules rules, LevelTemplate template) {
+		this(rules);
+		initTemplate(template);
 	}
 
 	/**
@@ -120,132 +206,340 @@ public class Grid {
 	 * spawn colored tiles, starting time, starting swaps, and
 	 * starting max moves allowed.
 	 * This method is used to construct grid object in Challenge mode
-	 * @param file Path in the assets to the level file
+	 * @param file Path in the assets to the level file, named after its level number
+	 */
+	public static Grid load(GridRules rules, FileHandle file) {
+		return load(rules, LevelData.load(file));
+	}
+
+	/**
+	 * Loads a level from the content of a level file, without needing
+	 * a running game to read the file
+	 * @param level Level number
+	 * @param content
+	 */
+	public static Grid load(GridRules rules, int level, String content) {
+		return load(rules, LevelData.parse(level, content));
+	}
+
+	/**
+	 * Loads a level from a level pack, decoding only that level
+	 * @param pack
+	 * @param level Level number
+	 */
+	public static Grid load(GridRules rules, LevelPack pack, int level) {
+		return load(rules, pack.getLevel(level));
+	}
+
+	/**
+	 * Loads a level from a level cache, only reading it from the pack 
+	 * the first time it is loaded
+	 * @param cache
+	 * @param level Level number
+	 */
+	public static Grid load(GridRules rules, LevelCache cache, int level) {
+		return load(rules, cache.getLevel(level));
+	}
+
+	/**
+	 * Constructs a grid in the starting state of a level, picking 
+	 * a color for each of its random tiles
+	 * @param data
 	 */
-	public static Grid load(GameMain game, FileHandle file) {
-		Grid g = new Grid(game);			// set to SINGLETON instance
-		g.numMovesLeft = 0;
-		g.maxLevelTime = 0f;
-		g.numSwapsLeft = 0;
+	public static Grid load(GridRules rules, LevelData data) {
+		Grid g = new Grid(rules);			// set to SINGLETON instance
 		// load undo move stored for this user TODO
 		g.undoCount = 9;
+		g.initTemplate(data.toTemplate(g.random));
+		return g;
+	}
 
-		// read the file and split the string into extractable content
-		// initialize grid properties
-		String content = file.readString();
-		String[] lines = content.split("\n");
-		//		String[] gridInfo = new String[]{};
-		int lineNum = 0;
-		int totalNumBox = 0;
-		for (int i = 0; i < lines.length; i++) {
-			if (lines[i].startsWith("//"))
-				continue;
-			else {
-				String[] tokens = lines[i].split(",");
-
-				// first line is grid details
-				if (lineNum == 0) {
-					g.width = Integer.parseInt(tokens[0]);
-					g.height = Integer.parseInt(tokens[1]);
-					g.numMovesLeft = Integer.parseInt(tokens[2]);
-					g.minGoldMovesLeft = Integer.parseInt(tokens[3]);
-					g.minSilverMovesLeft = Integer.parseInt(tokens[4]);
-					g.maxLevelTime = Float.parseFloat(tokens[5]);
-					g.numSwapsLeft = Integer.parseInt(tokens[6]);
-
-					// initialize grid data structure
-					// with dimensions
-					System.out.println("Initializing grid with dimension " + 
-							g.width + "x" + g.height);
-					totalNumBox = g.width*g.height;
-					int currId = 1;
-					g.grid = new ArrayList<GridBox>(totalNumBox);
-
-					for (int j = 0; j < totalNumBox; j++) {
-						currId = j+1;
-						GridBox box = new GridBox(currId);
-						g.grid.add(box);
-					}
-					g.colorGroups = new Array<Group>();
-
-					lineNum++;
-				}
-
-				// second line is grid tile info
-				else if (lineNum == 1) {
-					for (int j = 0; j < totalNumBox; j++) {
-						Color color = Color.NONE;
-						if (tokens[j].equals("x") || tokens[j].equals("^"))
-							continue;
-						else if (tokens[j].equals("b"))
-							color = Color.BLUE;
-						else if (tokens[j].equals("g"))
-							color = Color.GREEN;
-						else if (tokens[j].equals("r"))
-							color = Color.RED;
-						else if (tokens[j].equals("y"))
-							color = Color.YELLOW;
-						else if (tokens[j].equals("?"))
-							color = g.getRandomColor();
-
-						g.spawnGridBoxAt(j+1, color);
-					} 
-				}
+	/**
+	 * Creates the gridboxes for the dimension of the template specified
+	 * and sets them to its starting state
+	 * @param template
+	 */
+	private void initTemplate(LevelTemplate template) {
+		this.template = template;
+		level = template.getLevel();
+		width = template.getWidth();
+		height = template.getHeight();
+		minChainSize = template.getMinChainSize();
+		numBlocked = template.getNumBlocked();
+		if (numBlocked > 0) {
+			blocked = new boolean[width*height];
+			for (int i = 0; i < blocked.length; i++) {
+				blocked[i] = template.isBlocked(i);
+				if (blocked[i]) blockedHash = blockedHash*31 + i+1;
 			}
 		}
 
-		// spawn colored tiles from file
-		//		g.spawnGridBoxAt(1, Color.GREEN);
-		//		for (int i = 0; i < 12; i++) 
-		//			g.spawnRandomGridBox();
-
-		// clone all the grid objects to save this default state
-		g.defaultGrid = new ArrayList<GridBox>(g.width*g.height);
-		for (GridBox gridBox : g.grid) {
-			GridBox temp = new GridBox(gridBox.getId(), gridBox.getColor());
-			temp.setPrevId(gridBox.getPrevId());
-			g.defaultGrid.add(temp);
-		}
-		g.defaultMovesLeft = g.numMovesLeft;
-		g.defaultMinGoldMovesLeft = g.minGoldMovesLeft;
-		g.defaultMinSilverMovesLeft = g.minSilverMovesLeft;
-		g.defaultLevelTime = g.maxLevelTime;
-		g.defaultSwapsLeft = g.numSwapsLeft;
-		g.defaultNumSpawned = g.numBoxSpawned;
-		g.level = Integer.parseInt( file.name().substring(0, file.name().indexOf('.')) );
-		return g;
+		// initialize grid data structure
+		// with dimensions
+		int totalNumBox = width*height;
+		grid = new ArrayList<GridBox>(totalNumBox);
+		for (int i = 0; i < totalNumBox; i++) 
+			grid.add(new GridBox(i+1));
+		boxes = grid.toArray(new GridBox[totalNumBox]);
+		initBoard();
+		restoreDefaultState();
+	}
+
+	/**
+	 * Uses a packed board for moves and group detection if this grid is small enough,
+	 * otherwise allocates the group label arrays used with the gridbox objects
+	 */
+	private void initBoard() {
+		events = new GridEvents(width*height*2);
+		initZobristKeys();
+		undoBoards = new byte[(MAX_UNDO+1)*width*height];
+		undoChained = new boolean[(MAX_UNDO+1)*width*height];
+		undoMovesLeft = new int[MAX_UNDO+1];
+		undoSwapsLeft = new int[MAX_UNDO+1];
+		undoNumSpawned = new int[MAX_UNDO+1];
+		undoNumGroups = new int[MAX_UNDO+1];
+		undoCoinTypes = new byte[MAX_UNDO+1];
+		undoRandomStates = new long[MAX_UNDO+1];
+		if (BitBoard.fits(width, height)) {
+			bits = new BitBoard(width, height);
+			sources = new int[width*height];
+			if (blocked != null) {
+				long mask = 0L;
+				for (int i = 0; i < blocked.length; i++) 
+					if (blocked[i]) mask |= 1L << i;
+				bits.setBlocked(mask);
+			}
+		}
+		else {
+			int totalNumBox = width*height;
+			labels = new int[totalNumBox];
+			groupSizes = new int[totalNumBox];
+			changed = new int[totalNumBox];
+			isChanged = new boolean[totalNumBox];
+			pending = new int[totalNumBox];
+			stack = new int[totalNumBox];
+			freeCells = new int[totalNumBox];
+			freeSlots = new int[totalNumBox];
+			removedCells = new int[totalNumBox];
+			Arrays.fill(labels, -1);
+			rebuildFreeCells();
+		}
 	}
 
 	/**
 	 * Restores the default state of this level
 	 * This method is to be called when the player reloads the state of the default level
-	 * in the CHALLENGE mode
-	 * TODO load from cache
+	 * in the CHALLENGE mode. The existing gridboxes are reused, so nothing is allocated.
 	 * @return
 	 */
 	public boolean restoreDefaultState() {
-		grid.clear();
-		for (GridBox gridBox : defaultGrid) {
-			GridBox temp = new GridBox(gridBox.getId(), gridBox.getColor());
-			temp.setPrevId(gridBox.getPrevId());
-			grid.add(temp);
-		}
-		numMovesLeft = defaultMovesLeft;
-		minGoldMovesLeft = defaultMinGoldMovesLeft;
-		minSilverMovesLeft = defaultMinSilverMovesLeft;
-		maxLevelTime = defaultLevelTime;
-		numSwapsLeft = defaultSwapsLeft;
-		numBoxSpawned = defaultNumSpawned;
+		if (recorder != null) recorder.recordRestart();
+		for (int i = 0; i < boxes.length; i++) 
+			boxes[i].setColor(template.getColor(i));
+		resetBoard();
+		numMinChainGroup = 0;
+		undoHead = 0;
+		undoSize = 0;
+		numMovesLeft = template.getMovesLeft();
+		minGoldMovesLeft = template.getMinGoldMovesLeft();
+		minSilverMovesLeft = template.getMinSilverMovesLeft();
+		maxLevelTime = template.getLevelTime();
+		numSwapsLeft = template.getSwapsLeft();
+		numBoxSpawned = template.getNumSpawned();
 
 		return true;
 	}
 
 	/**
-	 * TODO
-	 * Undo a move and update the undo count
+	 * Derives the Zobrist keys for this grid dimension from a fixed seed,
+	 * using the SplitMix64 sequence
 	 */
-	public void undoMove() {
-		if (undoCount >= 1) undoCount--;
+	private void initZobristKeys() {
+		zobristKeys = zobristKeys(width, height);
+	}
+
+	/**
+	 * Returns the Zobrist keys of every grid box and color of a dimension, 
+	 * indexed by index*COLORS.length + color ordinal
+	 */
+	static long[] zobristKeys(int width, int height) {
+		long[] keys = new long[width*height*COLORS.length];
+		long seed = ((long) width << 32) | height;
+		for (int k = 0; k < keys.length; k++) {
+			long z = seed + (k+1) * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			keys[k] = z ^ (z >>> 31);
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the Zobrist key of a color at the grid box index specified.
+	 * Empty and removed grid boxes have no key.
+	 */
+	private long zobrist(int index, Color color) {
+		if (color == Color.NONE || color == Color.REMOVED) return 0L;
+		return zobristKeys[index*COLORS.length + color.ordinal()];
+	}
+
+	/**
+	 * Rebuilds the packed board or the group labels from the colors of the gridboxes, 
+	 * after they have all been replaced. Every box is reported as spawned so that 
+	 * the renderer can draw the board from scratch.
+	 */
+	private void resetBoard() {
+		events.clear();
+		hash = 0L;
+		for (int i = 0; i < boxes.length; i++) {
+			if (!boxes[i].isEmpty()) events.spawn(i, boxes[i].getColor());
+			hash ^= zobrist(i, boxes[i].getColor());
+		}
+
+		if (bits != null) {
+			bits.clear();
+			for (int i = 0; i < boxes.length; i++)
+				bits.set(i, boxes[i].getColor());
+		}
+		else {
+			Arrays.fill(labels, -1);
+			clearChanged();
+			for (int i = 0; i < boxes.length; i++) 
+				if (!boxes[i].isEmpty()) markChanged(i);
+			rebuildFreeCells();
+			numRemoved = 0;
+		}
+	}
+
+	/**
+	 * Undo a move and update the undo count. The grid is restored to the snapshot 
+	 * taken before the last swipe or swap, and every box is reported as spawned.
+	 * @return True if a move was undone
+	 */
+	public boolean undoMove() {
+		if (undoCount < 1 || undoSize == 0) return false;
+
+		undoHead = (undoHead + MAX_UNDO) % (MAX_UNDO+1);
+		undoSize--;
+		restoreBoard(undoBoards, undoHead*boxes.length, false);
+		restoreChained(undoChained, undoHead*boxes.length, undoNumGroups[undoHead]);
+		numMovesLeft = undoMovesLeft[undoHead];
+		numSwapsLeft = undoSwapsLeft[undoHead];
+		numBoxSpawned = undoNumSpawned[undoHead];
+		coinType = undoCoinTypes[undoHead] == -1 ? null : COIN_TYPES[undoCoinTypes[undoHead]];
+		random.setState(undoRandomStates[undoHead]);
+
+		undoCount--;
+		if (recorder != null) recorder.recordUndo();
+		return true;
+	}
+
+	/**
+	 * Writes the color ordinal of every gridbox into the array specified, 
+	 * starting at the offset. Boxes being removed are saved as empty.
+	 * @param board
+	 * @param offset
+	 */
+	void saveBoard(byte[] board, int offset) {
+		for (int i = 0; i < boxes.length; i++) {
+			Color color = boxes[i].getColor();
+			board[offset+i] = (byte) (color == Color.REMOVED ? 0 : color.ordinal());
+		}
+	}
+
+	/**
+	 * Sets every gridbox to the color ordinals saved by saveBoard and rebuilds the 
+	 * engine state from them. The number of spawned boxes is counted from the board.
+	 * @param board
+	 * @param offset
+	 * @param hasGroups Whether or not chained groups had already been found on the board 
+	 * when it was saved, so that they are removed on the next move
+	 */
+	void restoreBoard(byte[] board, int offset, boolean hasGroups) {
+		numBoxSpawned = 0;
+		for (int i = 0; i < boxes.length; i++) {
+			boxes[i].setColor(COLORS[board[offset+i]]);
+			if (board[offset+i] != 0) numBoxSpawned++;
+		}
+		resetBoard();
+
+		// groups only matter if they were already found when the board was saved
+		numMinChainGroup = 0;
+		if (hasGroups) updateGroups();
+	}
+
+	/**
+	 * Returns the number of moves that can currently be undone, 
+	 * regardless of the undo count
+	 * @return
+	 */
+	public int getNumSnapshots() {
+		return undoSize;
+	}
+
+	/**
+	 * Marks the gridboxes of the groups that are chained to be removed on the next move,
+	 * as they were saved with saveChained. Groups are not looked for again, as boxes
+	 * spawned after they were found do not belong to them until the next move.
+	 * @param chained
+	 * @param offset
+	 * @param numGroups Number of chained groups saved, or 0 if there are none
+	 */
+	private void restoreChained(boolean[] chained, int offset, int numGroups) {
+		if (numGroups == 0) return;
+		if (bits != null) {
+			long mask = 0L;
+			for (int i = 0; i < boxes.length; i++) 
+				if (chained[offset+i]) mask |= 1L << i;
+			bits.setChained(mask);
+			numMinChainGroup = numGroups;
+		}
+		else {
+			// every other gridbox is left unlabeled, and is grouped again after the next move
+			for (int i = 0; i < boxes.length; i++) 
+				if (chained[offset+i]) growGroup(i, chained, offset);
+		}
+	}
+
+	/**
+	 * Writes, for every gridbox, whether it belongs to a group that is chained to be
+	 * removed on the next move into the array specified, starting at the offset
+	 * @param chained
+	 * @param offset
+	 */
+	private void saveChained(boolean[] chained, int offset) {
+		long mask = bits != null ? bits.getChained() : 0L;
+		for (int i = 0; i < boxes.length; i++) 
+			chained[offset+i] = bits != null ? (mask & 1L << i) != 0 
+					: labels[i] != -1 && groupSizes[labels[i]] >= minChainSize;
+	}
+
+	/**
+	 * Saves the board, the counters and the random state into the spare slot of 
+	 * the undo ring buffer. The snapshot only counts once it is committed, so that 
+	 * a move that changes nothing does not overwrite the oldest one.
+	 */
+	private void saveSnapshot() {
+		saveBoard(undoBoards, undoHead*boxes.length);
+		if (numMinChainGroup > 0) saveChained(undoChained, undoHead*boxes.length);
+		undoMovesLeft[undoHead] = numMovesLeft;
+		undoSwapsLeft[undoHead] = numSwapsLeft;
+		undoNumSpawned[undoHead] = numBoxSpawned;
+		undoNumGroups[undoHead] = numMinChainGroup;
+		undoCoinTypes[undoHead] = (byte) (coinType == null ? -1 : coinType.ordinal());
+		undoRandomStates[undoHead] = random.getState();
+	}
+
+	/**
+	 * Keeps the last saved snapshot, giving up the oldest one once the buffer is full
+	 */
+	private void commitSnapshot() {
+		undoHead = (undoHead + 1) % (MAX_UNDO+1);
+		if (undoSize < MAX_UNDO) undoSize++;
+	}
+
+	void setUndoCount(int count) {
+		undoCount = count;
 	}
 
 	/**
@@ -284,6 +578,27 @@ public class Grid {
 		return level;
 	}
 
+	GridRules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Sets the listener of the game state transitions of this grid
+	 * @param listener
+	 */
+	public void setListener(GridListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the starting state of the level this grid was loaded from,
+	 * or null if it was not loaded from a level
+	 * @return
+	 */
+	public LevelTemplate getTemplate() {
+		return template;
+	}
+
 	/**
 	 * Returns the number of grid boxes as width
 	 * @return
@@ -316,6 +631,44 @@ public class Grid {
 		return grid.size();
 	}
 
+	/**
+	 * Returns whether or not the grid box with the id specified is blocked
+	 * @param id
+	 * @return
+	 */
+	public boolean isBlocked(int id) {
+		return blocked != null && blocked[id-1];
+	}
+
+	/**
+	 * Returns the number of grid boxes that are blocked
+	 * @return
+	 */
+	public int getNumBlocked() {
+		return numBlocked;
+	}
+
+	/**
+	 * Returns a hash of which grid boxes are blocked. Grids with the same blocked
+	 * grid boxes always have the same hash, which is 0 if none is blocked.
+	 * @return
+	 */
+	public long getBlockedHash() {
+		return blockedHash;
+	}
+
+	/**
+	 * Returns the current state of this grid as a template, with the counters 
+	 * left and the blocked grid boxes. Boxes being removed are saved as empty.
+	 * @return
+	 */
+	LevelTemplate snapshot() {
+		byte[] board = new byte[boxes.length];
+		saveBoard(board, 0);
+		return new LevelTemplate(level, width, height, numMovesLeft, minGoldMovesLeft, 
+				minSilverMovesLeft, maxLevelTime, numSwapsLeft, board, blocked, minChainSize);
+	}
+
 	/**
 	 * Returns the number of possible moves (eg. swipe, swap) allowed left
 	 * in this level
@@ -350,15 +703,41 @@ public class Grid {
 	}
 
 
+	/**
+	 * Returns the events of the last update, or the spawns of every box after the level
+	 * is loaded or restored. The list is reused and cleared on the next update.
+	 * @return
+	 */
+	public GridEvents getEvents() {
+		return events;
+	}
+
+	/**
+	 * Returns the 64-bit Zobrist hash of the colors on the board. Boxes being removed 
+	 * count as empty. Equal boards of the same dimension always have the same hash.
+	 * @return
+	 */
+	public long getHash() {
+		return hash;
+	}
+
 	/**
 	 * Returns the number of same-color gridbox groups with number of members 
-	 * greater than or equal to MIN_CHAIN_SIZE found 
+	 * greater than or equal to the minimum chain size found 
 	 * @return
 	 */
 	public int getNumColorGroups() {
 		return numMinChainGroup;
 	}
 
+	/**
+	 * Returns the number of same-color boxes a group needs to be cleared in this level
+	 * @return
+	 */
+	public int getMinChainSize() {
+		return minChainSize;
+	}
+
 	/**
 	 * Returns next random integer in range specified
 	 * @param min inclusive
@@ -370,38 +749,44 @@ public class Grid {
 	}
 
 	/**
-	 * Returns non-diagonal neighboring gridboxes
-	 * @param g
-	 * @return
+	 * Seeds the random number generator used for spawning, so that
+	 * the same moves always produce the same game
+	 * @param seed
 	 */
-	private Array<GridBox> getNeighBors(GridBox g) {
-		Array<GridBox> neighbors = new Array<GridBox>();
-		int index = g.getId()-1;
-
-		// check boundary conditions
-		// add left neighbor
-		// except left columns
-		if (index % width != 0) 
-			neighbors.add(grid.get( index-1 ));
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
 
-		// add top neighbor
-		// except top row
-		if (index >= width)
-			neighbors.add(grid.get( index-width ));
+	/**
+	 * Returns the random number generator used for spawning. Its state can be 
+	 * saved and restored to replay the same spawns.
+	 * @return
+	 */
+	public GridRandom getRandom() {
+		return random;
+	}
 
-		// add right neighbor
-		// except right column
-		if (index % width != (width-1))
-			neighbors.add(grid.get( index+1 ));
+	/**
+	 * Sets the random number generator used for spawning, eg. one split off 
+	 * for a simulation thread. The generator must not be shared with another grid.
+	 * @param random
+	 */
+	public void setRandom(GridRandom random) {
+		this.random = random;
+	}
 
-		// add bottom neighbor
-		// except bottom row
-		if (index < (height-1)*width)
-			neighbors.add(grid.get( index+width ));
+	ReplayRecorder getRecorder() {
+		return recorder;
+	}
 
-		return neighbors;
+	/**
+	 * Sets the recorder that every input is recorded to, or null to stop recording
+	 * @param recorder
+	 */
+	void setRecorder(ReplayRecorder recorder) {
+		this.recorder = recorder;
 	}
-	
+
 	/** 
 	 * Returns type of coin awarded if the player were to complete the 
 	 * level with the current move left
@@ -419,7 +804,7 @@ public class Grid {
 	 * @return
 	 */
 	public int getNumMovesUsed() {
-		return defaultMovesLeft - numMovesLeft;
+		return (template == null ? 0 : template.getMovesLeft()) - numMovesLeft;
 	}
 
 	/******************************************************************************************/
@@ -428,7 +813,11 @@ public class Grid {
 	boolean firstMove = true;
 	boolean done = false;
 	/**
-	 * Updates all instances of gridboxes and logic in the grid form swipe direction
+	 * Updates all instances of gridboxes and logic in the grid form swipe direction.
+	 * The whole move is resolved in this one call: boxes slide, then every chained 
+	 * group is cleared and the boxes slide again in the same direction until no group 
+	 * is left, before anything spawns. Each slide is one step of the events, so the 
+	 * renderer can animate the cascade one step after another.
 	 * @param deltaTime
 	 * @return True if any change in the grid occurs
 	 */
@@ -437,20 +826,17 @@ public class Grid {
 		// TODO SWIPE TO BEGIN LEVEL
 		//		if (!firstMove) move(direction);
 		//		firstMove = false;
-		boolean hasMoved = move(direction);
+		events.clear();
+		if (recorder != null) recorder.recordSwipe(direction);
 
-		// update all group of color matches
-		updateColorMatchCounts();
-		numMinChainGroup = 0;
-
-		for (Group g : colorGroups) {
-			if (g.size >= MIN_CHAIN_SIZE)
-				numMinChainGroup++;
-		}
+		// a swipe that clears groups chained by a swap belongs to the swap before it
+		boolean isNewMove = numMinChainGroup == 0;
+		if (isNewMove) saveSnapshot();
+		boolean hasMoved = resolve(direction);
+		if (isNewMove && hasMoved) commitSnapshot();
 
 		// spawn new gridbox
-		if (numMinChainGroup == 0 
-				&& game.getGameMode() == GameMode.CLASSIC)	
+		if (rules.getGameMode() == GameMode.CLASSIC)	
 			spawnRandomGridBox();
 		//				if (!done) {
 		//					spawnGridBoxAt(13, Color.RED);
@@ -459,6 +845,24 @@ public class Grid {
 		return hasMoved;
 	}
 
+	/**
+	 * Moves all the boxes in the direction specified and updates the groups, then 
+	 * keeps clearing chained groups and moving in the same direction until none is 
+	 * found. Every move after the first starts a new step of the events.
+	 * @param direction
+	 * @return True if the first move changed the grid
+	 */
+	boolean resolve(Swipe direction) {
+		boolean hasMoved = move(direction);
+		updateGroups();
+		while (numMinChainGroup > 0) {
+			events.nextStep();
+			move(direction);
+			updateGroups();
+		}
+		return hasMoved;
+	}
+
 	/**
 	 * Updates gridboxes that are swapped
 	 * @param deltaTime
@@ -466,10 +870,14 @@ public class Grid {
 	 * @param secondSwapID
 	 */
 	public void update(float deltaTime, int firstSwapID, int secondSwapID) {
-		swap(firstSwapID, secondSwapID);
+		events.clear();
+		if (recorder != null) recorder.recordSwap(firstSwapID, secondSwapID);
+		saveSnapshot();
+		if (swap(firstSwapID, secondSwapID)) commitSnapshot();
+		updateGroups();
 
 		// spawn new gridbox
-		if (game.getGameMode() == GameMode.CLASSIC)	
+		if (rules.getGameMode() == GameMode.CLASSIC)	
 			spawnRandomGridBox();
 	}
 
@@ -477,22 +885,34 @@ public class Grid {
 	 * Swaps two specified IDs in the grid
 	 * @param firstSwapID
 	 * @param secondSwapID
+	 * @return True if both gridboxes have a color and are swapped
 	 */
-	private void swap(int firstSwapID, int secondSwapID) {
+	boolean swap(int firstSwapID, int secondSwapID) {
+		clearRemoved();
 		GridBox first = grid.get(firstSwapID-1);
 		GridBox second = grid.get(secondSwapID-1);
 
 		if (first.isEmpty() || second.isEmpty()) 
-			return;
+			return false;
 		else {
 			// move first box to second
 			Color secondColor = second.getColor();
+			hash ^= zobrist(firstSwapID-1, first.getColor()) ^ zobrist(secondSwapID-1, secondColor)
+					^ zobrist(firstSwapID-1, secondColor) ^ zobrist(secondSwapID-1, first.getColor());
 			second.setColor(first.getColor());
-			second.setPrevId(first.getId());
 			first.setColor(secondColor);
-			first.setPrevId(second.getId());
+			events.swap(firstSwapID-1, secondSwapID-1, second.getColor());
+			if (bits != null) {
+				bits.set(firstSwapID-1, first.getColor());
+				bits.set(secondSwapID-1, second.getColor());
+			}
+			else {
+				markChanged(firstSwapID-1);
+				markChanged(secondSwapID-1);
+			}
 		}
 		numSwapsLeft--;
+		return true;
 	}
 
 	/**
@@ -500,6 +920,7 @@ public class Grid {
 	 * possible moves allowed in a level. Also this method will update the coin type.
 	 */
 	public void updateMoveCount() {
+		if (recorder != null) recorder.recordMoveCount();
 		if (numMovesLeft > 0) {
 			numMovesLeft--;
 			
@@ -520,16 +941,24 @@ public class Grid {
 	 * Spawns a random color on a random grid box that is empty
 	 */
 	public GridBox spawnRandomGridBox() {
-		if (numBoxSpawned >= grid.size()) return null;
-
-		int id = getRandomInt(1, grid.size()+1);
+		if (numBoxSpawned >= grid.size() - numBlocked) return null;
+
+		// pick straight from the empty gridboxes, so the cost does not 
+		// depend on how full the grid is
+		int index;
+		if (bits != null) {
+			long empty = bits.getEmpty();
+			int count = Long.bitCount(empty);
+			if (count == 0) return null;
+			index = BitBoard.select(empty, getRandomInt(0, count));
+		}
+		else {
+			if (numFree == 0) return null;
+			index = freeCells[getRandomInt(0, numFree)];
+		}
 		GridBox.Color color = getRandomColor();
 
-		// if id is taken, re-randomize id
-		while (!grid.get(id-1).isEmpty()) 
-			id = getRandomInt(1, grid.size()+1);
-
-		GridBox spawn = spawnGridBoxAt(id, color);
+		GridBox spawn = spawnGridBoxAt(index+1, color);
 		return spawn;
 	}
 
@@ -538,10 +967,20 @@ public class Grid {
 	}
 
 	public GridBox.Color getRandomColor() {
-		GridBox.Color[] colors = GridBox.Color.values();
+		return getRandomColor(random, width, height);
+	}
+
+	/**
+	 * Returns the next random color that boxes of a grid of the dimension specified spawn in
+	 * @param random
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	static GridBox.Color getRandomColor(GridRandom random, int width, int height) {
 		int colorLimit = 1;
 		if (width == 4 && height == 4) colorLimit = 2;
-		return colors[getRandomInt(1, colors.length-colorLimit)];
+		return COLORS[random.nextInt(COLORS.length-colorLimit-1) + 1];
 	}
 
 	/**
@@ -551,300 +990,413 @@ public class Grid {
 	 * @return
 	 */
 	public GridBox spawnGridBoxAt(int id, Color color) {
-		if (id < 1 || id > grid.size()) return null;
+		if (id < 1 || id > grid.size() || isBlocked(id)) return null;
 
 		GridBox box = grid.get(id-1);
+		hash ^= zobrist(id-1, box.getColor()) ^ zobrist(id-1, color);
 		box.setColor(color);
-		box.setPrevId(-1);
-		System.out.println("Spawned " + (id-1) + " color " + color + " ");
+		if (bits != null) bits.set(id-1, color);
+		else markChanged(id-1);
+		if (color != Color.NONE) events.spawn(id-1, color);
 		numBoxSpawned++;
 		return box;
 	}
 
 	/**
 	 * Moves all the spawned boxes in a direction specified
-	 * TODO check all gridboxes whose group has size >= MIN_CHAIN_SIZE 
-	 * set their color to NONE (empty)
+	 * Gridboxes whose group was chained by the last group update are marked REMOVED
 	 * @param direction
 	 */
 	public boolean move(Swipe direction) {
+		clearRemoved();
+		if (bits != null) 
+			return moveBits(direction);
+
+		int numLines = (direction == Swipe.LEFT || direction == Swipe.RIGHT) ? height : width;
+		return compactLines(direction, 0, numLines);
+	}
+
+	/**
+	 * Moves all the boxes on the packed board, then updates the grid boxes 
+	 * and the events from the result
+	 * @param direction
+	 */
+	private boolean moveBits(Swipe direction) {
+		boolean hasMoved = bits.move(direction);
+		long removed = bits.getRemoved();
+		numBoxSpawned -= bits.getNumRemoved();
+
+		// every removal happens before any box moves
+		long cleared = bits.getCleared();
+		while (cleared != 0) {
+			int index = Long.numberOfTrailingZeros(cleared);
+			events.remove(index, boxes[index].getColor());
+			hash ^= zobrist(index, boxes[index].getColor());
+			cleared &= cleared - 1;
+		}
+
+		// walk from the edge the boxes move toward, so that every move 
+		// ends at a grid box that has already been emptied
+		bits.getSources(direction, sources);
+		boolean reverse = direction == Swipe.RIGHT || direction == Swipe.DOWN;
+		for (int k = 0; k < sources.length; k++) {
+			int i = reverse ? sources.length-1-k : k;
+			GridBox box = boxes[i];
+			int source = sources[i];
+			if (source == -1) {
+				if ((removed & (1L << i)) != 0) 
+					box.setColor(Color.REMOVED);
+				else if (!box.isEmpty()) 
+					box.clearColor();
+			}
+			else if (source != i) {
+				box.setColor(bits.get(i));
+				events.move(source, i, box.getColor());
+				hash ^= zobrist(source, box.getColor()) ^ zobrist(i, box.getColor());
+			}
+		}
+		return hasMoved;
+	}
 
+	/**
+	 * Compacts every line from firstLine (inclusive) to lastLine (exclusive) toward 
+	 * the edge of the swipe direction. Lines are rows for LEFT and RIGHT, and columns 
+	 * for UP and DOWN. Each line is walked once from that edge with a write cursor:
+	 * a box that belongs to a chained group is marked REMOVED and leaves a hole, 
+	 * any other box is moved to the cursor, which is always the nearest empty or 
+	 * removed grid box in front of it. A blocked grid box moves the cursor past it, 
+	 * so the segments of a line between blocks are compacted in the same walk.
+	 * Lines do not depend on each other, so a large grid can be compacted in chunks of lines.
+	 * @param direction
+	 * @param firstLine
+	 * @param lastLine
+	 * @return True if any box is moved or removed
+	 */
+	boolean compactLines(Swipe direction, int firstLine, int lastLine) {
+		int start, lineStep, step, length;
 		switch(direction) {
-		case DOWN:
-			return moveDown();
 		case LEFT:
-			return moveLeft();
+			start = 0; lineStep = width; step = 1; length = width;
+			break;
 		case RIGHT:
-			return moveRight();
+			start = width-1; lineStep = width; step = -1; length = width;
+			break;
 		case UP:
-			return moveUp();
+			start = 0; lineStep = 1; step = width; length = height;
+			break;
+		case DOWN:
+			start = (height-1)*width; lineStep = 1; step = -width; length = height;
+			break;
 		default:
 			return false;
 		}
-	}
 
-	/**
-	 * Move all boxes leftward
-	 */
-	private boolean moveLeft() {
-		// iterate through all colored boxes, starting at 
-		// the second top row
-		//		int secondTopLeftIndex = 1;
+		boolean[] blocked = this.blocked;
 		boolean hasMoved = false;
-		int secondTopLeftIndex = 0;
-		GridBox toMove = null;
-		GridBox destination = null;
-		for (int i = secondTopLeftIndex; i < width*height; i++) {
-			toMove = grid.get(i);
-
-			if (toMove.isEmpty() 
-					//					|| i%width == 0
-					) continue;
-			if (toMove.getGroup() != null) {
-				if (toMove.getGroup().size >= MIN_CHAIN_SIZE) {
+		for (int line = firstLine; line < lastLine; line++) {
+			int first = start + line*lineStep;
+			int end = first + length*step;
+			int write = first;
+			for (int read = first; read != end; read += step) {
+				GridBox toMove = boxes[read];
+				Color color = toMove.getColor();
+				if (color == Color.NONE || color == Color.REMOVED) {
+					if (blocked != null && blocked[read]) write = read + step;
+					continue;
+				}
+
+				if (labels[read] != -1 && groupSizes[labels[read]] >= minChainSize) {
+					events.remove(read, color);
+					hash ^= zobrist(read, color);
 					toMove.setColor(Color.REMOVED);
-					toMove.setPrevId(-3);
+					markChanged(read);
+					removedCells[numRemoved++] = read;
 					numBoxSpawned--;
 					hasMoved = true;
 					continue;
 				}
-			}
 
-			// find the leftmost non-colored box to move to
-			for (int j = 0;  j < width; j++) {
-				// find the index that is in the same row
-				int index = i - (i%width) + j;
-				if (index == i) break;
-				else {
-					destination = grid.get(index);
-					if (destination.isEmpty() 
-							|| destination.getColor() == Color.REMOVED
-							) {
-						destination.setPrevId( toMove.getId() );
-						destination.setColor( toMove.getColor() );
-						toMove.clearColor();
-						hasMoved = true;
-						break;
-					}
+				if (write != read) {
+					GridBox destination = boxes[write];
+					destination.setColor( color );
+					events.move(read, write, color);
+					hash ^= zobrist(read, color) ^ zobrist(write, color);
+					toMove.clearColor();
+					markChanged(write);
+					markChanged(read);
+					hasMoved = true;
 				}
+				write += step;
 			}
 		}
 		return hasMoved;
 	}
 
 	/**
-	 * Move all boxes rightward
+	 * Updates the number of same-color groups that are large enough to be chained
+	 * after gridboxes have changed
 	 */
-	private boolean moveRight() {
-		// iterate through all colored boxes, starting at 
-		// the second rightmost bottom row
-		//		int secondRightBottomIndex = width*height - 2;
-		boolean hasMoved = false;
-		int secondRightBottomIndex = width*height - 1;
-		GridBox toMove = null;
-		GridBox destination = null;
-		for (int i = secondRightBottomIndex; i >= 0; i--) {
-			toMove = grid.get(i);
-
-			// also ignore rightmost column
-			if (toMove.isEmpty()
-					//					|| i%width == width-1
-					) continue;
-			if (toMove.getGroup() != null) {
-				if (toMove.getGroup().size >= MIN_CHAIN_SIZE) {
-					toMove.setColor(Color.REMOVED);
-					toMove.setPrevId(-3);
-					numBoxSpawned--;
-					hasMoved = true;
-					continue;
-				}
-			}
+	void updateGroups() {
+		if (bits != null) 
+			numMinChainGroup = bits.updateGroups(minChainSize);
+		else if (numChanged > boxes.length/4) {
+			clearChanged();
+			numMinChainGroup = updateColorMatchCounts();
+		}
+		else 
+			relabelChanged();
+	}
 
+	/**
+	 * Relabels only the groups that can be affected by the changed gridboxes.
+	 * The old groups of every changed gridbox and of its neighbors are dropped, then
+	 * the dropped and changed gridboxes are grouped again by flood fill, so the
+	 * cost depends on the size of the affected groups rather than the grid size.
+	 */
+	private void relabelChanged() {
+		numPending = 0;
+		for (int k = 0; k < numChanged; k++) {
+			int index = changed[k];
+			int col = index % width;
+			dropGroup(index);
+			if (col > 0) dropGroup(index-1);
+			if (col < width-1) dropGroup(index+1);
+			if (index >= width) dropGroup(index-width);
+			if (index < boxes.length-width) dropGroup(index+width);
+		}
 
-			// find the rightmost non-colored box to move to
-			for (int j = 0;  j < width; j++) {
-				// find the index that is in the same row
-				int index = (width - ((i%width) + 1)) - j + i;
-				if (index == i) break;
-				else {
-					destination = grid.get(index);
-					if (destination.isEmpty()
-							|| destination.getColor() == Color.REMOVED
-							) {
-						hasMoved = true;
-						destination.setPrevId( toMove.getId() );
-						destination.setColor( toMove.getColor() );
-						toMove.clearColor();
-						break;
-					}
-				}
+		for (int k = 0; k < numChanged; k++) 
+			growGroup(changed[k]);
+		for (int k = 0; k < numPending; k++) 
+			growGroup(pending[k]);
+		clearChanged();
+	}
 
+	/**
+	 * Removes the label of every member of the group containing the gridbox
+	 * specified, and adds them to the pending list
+	 */
+	private void dropGroup(int start) {
+		int label = labels[start];
+		if (label == -1) return;
+		if (groupSizes[label] >= minChainSize) numMinChainGroup--;
+
+		// labels have not changed since the group was found, so its members
+		// are still connected through the same label
+		int top = 0;
+		labels[start] = -1;
+		stack[top++] = start;
+		while (top > 0) {
+			int index = stack[--top];
+			int col = index % width;
+			pending[numPending++] = index;
+			if (col > 0 && labels[index-1] == label) {
+				labels[index-1] = -1;
+				stack[top++] = index-1;
+			}
+			if (col < width-1 && labels[index+1] == label) {
+				labels[index+1] = -1;
+				stack[top++] = index+1;
+			}
+			if (index >= width && labels[index-width] == label) {
+				labels[index-width] = -1;
+				stack[top++] = index-width;
+			}
+			if (index < boxes.length-width && labels[index+width] == label) {
+				labels[index+width] = -1;
+				stack[top++] = index+width;
 			}
 		}
-		return hasMoved;
 	}
 
 	/**
-	 * Move all boxes downward
+	 * Labels the group of unlabeled same-color gridboxes containing the gridbox 
+	 * specified, using the gridbox index as the group label
 	 */
-	private boolean moveDown() {
-		// iterate through all colored boxes, starting at 
-		// the second most bottom row
-		//		int secondLastRowIndex = width*(height-1) - 1;
-		boolean hasMoved = false;
-		int secondLastRowIndex = width*height - 1;
-		GridBox toMove = null;
-		GridBox destination = null;
-		for (int i = secondLastRowIndex; i >= 0; i--) {
-			toMove = grid.get(i);
-			if (toMove.isEmpty()) continue;
-
-			if (toMove.getGroup() != null) {
-				if (toMove.getGroup().size >= MIN_CHAIN_SIZE) {
-					toMove.setColor(Color.REMOVED);
-					toMove.setPrevId(-3);
-					numBoxSpawned--;
-					hasMoved = true;
-					continue;
-				}
-			}
+	private void growGroup(int start) {
+		growGroup(start, null, 0);
+	}
 
-			// find the most bottom non-colored box to move to
-			for (int j = 1; j <= height; j++) {
-				// find the index that is in the same column
-				int index = width*(height-j) + (i%width);	
-				if (index < i) break;
-				else {
-					destination = grid.get(index);
-					if (destination.isEmpty()
-							|| destination.getColor() == Color.REMOVED
-							) {
-						destination.setPrevId( toMove.getId() );
-						destination.setColor( toMove.getColor() );
-						toMove.clearColor();
-						hasMoved = true;
-						break;
-					}
-				}
+	/**
+	 * Labels the group of unlabeled same-color gridboxes containing the gridbox 
+	 * specified, only joining the gridboxes set in the mask if there is one
+	 */
+	private void growGroup(int start, boolean[] mask, int offset) {
+		Color color = boxes[start].getColor();
+		if (labels[start] != -1 || color == Color.NONE || color == Color.REMOVED) return;
+
+		int size = 0;
+		int top = 0;
+		labels[start] = start;
+		stack[top++] = start;
+		while (top > 0) {
+			int index = stack[--top];
+			int col = index % width;
+			size++;
+			if (col > 0 && labels[index-1] == -1 && (mask == null || mask[offset+index-1]) 
+					&& boxes[index-1].getColor() == color) {
+				labels[index-1] = start;
+				stack[top++] = index-1;
 			}
+			if (col < width-1 && labels[index+1] == -1 && (mask == null || mask[offset+index+1]) 
+					&& boxes[index+1].getColor() == color) {
+				labels[index+1] = start;
+				stack[top++] = index+1;
+			}
+			if (index >= width && labels[index-width] == -1 && (mask == null || mask[offset+index-width]) 
+					&& boxes[index-width].getColor() == color) {
+				labels[index-width] = start;
+				stack[top++] = index-width;
+			}
+			if (index < boxes.length-width && labels[index+width] == -1 && (mask == null || mask[offset+index+width]) 
+					&& boxes[index+width].getColor() == color) {
+				labels[index+width] = start;
+				stack[top++] = index+width;
+			}
+		}
+		groupSizes[start] = size;
+		if (size >= minChainSize) numMinChainGroup++;
+	}
 
+	/**
+	 * Remembers that the color of the gridbox at the index specified has changed
+	 * since groups were last updated, and updates the empty gridbox index.
+	 * Packed boards do not keep track of this.
+	 */
+	private void markChanged(int index) {
+		if (isChanged == null) return;
+		updateFreeCell(index);
+		if (isChanged[index]) return;
+		isChanged[index] = true;
+		changed[numChanged++] = index;
+	}
+
+	/**
+	 * Adds or removes the gridbox at the index specified from the empty gridbox index,
+	 * depending on its color. Removing swaps the last entry into its slot.
+	 */
+	private void updateFreeCell(int index) {
+		boolean isFree = boxes[index].getColor() == Color.NONE 
+				&& (blocked == null || !blocked[index]);
+		int slot = freeSlots[index];
+		if (isFree && slot == -1) {
+			freeSlots[index] = numFree;
+			freeCells[numFree++] = index;
+		}
+		else if (!isFree && slot != -1) {
+			int last = freeCells[--numFree];
+			freeCells[slot] = last;
+			freeSlots[last] = slot;
+			freeSlots[index] = -1;
 		}
-		return hasMoved;
 	}
 
 	/**
-	 * Move all boxes upward
+	 * Empties the gridboxes still marked REMOVED by the last move. They stay marked
+	 * until the next move or swap, so that nothing spawns where a group was just cleared.
 	 */
-	private boolean moveUp() {
-		// iterate through all colored boxes, starting at
-		// the second most top row
-		//		int secondTopRowIndex = width;
-		boolean hasMoved = false;
-		int secondTopRowIndex = 0;
-		GridBox toMove = null;
-		GridBox destination = null;
-		for (int i = secondTopRowIndex; i < width*height; i++) {
-			toMove = grid.get(i);
-			if (toMove.isEmpty()) continue;
-
-			if (toMove.getGroup() != null) {
-				if (toMove.getGroup().size >= MIN_CHAIN_SIZE) {
-					toMove.setColor(Color.REMOVED);
-					toMove.setPrevId(-3);
-					numBoxSpawned--;
-					hasMoved = true;
-					continue;
-				}
+	private void clearRemoved() {
+		if (bits != null) {
+			long removed = bits.getRemoved();
+			while (removed != 0) {
+				int index = Long.numberOfTrailingZeros(removed);
+				boxes[index].clearColor();
+				bits.set(index, Color.NONE);
+				removed &= removed - 1;
 			}
+			return;
+		}
+		for (int k = 0; k < numRemoved; k++) {
+			int index = removedCells[k];
+			if (boxes[index].getColor() == Color.REMOVED) 
+				boxes[index].clearColor();
+			updateFreeCell(index);
+		}
+		numRemoved = 0;
+	}
 
-			// find the topmost non-colored box to move to
-			for (int j = height; j >= 1; j--) {
-				// find the index that is in the same column
-				int index = width*(height-j) + (i%width);
-				if (index > i) break;
-				else {
-					destination = grid.get(index);
-					if (destination.isEmpty() 
-							|| destination.getColor() == Color.REMOVED
-							) {
-						destination.setPrevId( toMove.getId() );
-						destination.setColor( toMove.getColor() );
-						toMove.clearColor();
-						hasMoved = true;
-						break;
-					}
-				}
-			}
+	private void rebuildFreeCells() {
+		numFree = 0;
+		Arrays.fill(freeSlots, -1);
+		for (int i = 0; i < boxes.length; i++) 
+			updateFreeCell(i);
+	}
 
-		}
-		return hasMoved;
+	private void clearChanged() {
+		for (int k = 0; k < numChanged; k++) 
+			isChanged[changed[k]] = false;
+		numChanged = 0;
 	}
 
 	/**
 	 * Checks and updates all neighboring gridboxes if there are color matches
 	 * This is called after all gridboxes are moved.
+	 * Same-color non-diagonal neighbors are joined with a union-find over the 
+	 * label array, so no group object is allocated.
+	 * @return Number of groups with at least minChainSize members
 	 */
-	private Array<Group> updateColorMatchCounts() {
-		colorGroups.clear();
-		Array<GridBox> neighbors = new Array<GridBox>();
-
-		// clear all thr groups made from previous update
-		for (GridBox g : grid) {
-			g.setGroup(null);
-		} 
-
-		// iterate through all gridboxes to find non-diagonal match-colored neighbors 
-		// and update their groups
-		for (int i = 0; i < grid.size(); i++) {
-			GridBox g = grid.get(i);
-			if (!g.isEmpty() && g.getColor() != Color.REMOVED) {
-				neighbors.clear();
-				neighbors = getNeighBors(g);
-
-				for (GridBox n : neighbors) {
-
-					// is n the same color ?
-					if (n.getColor() == g.getColor()) {
-
-						// is n already added into a group ?
-						if (n.getGroup() == null) {
-
-							// if g has a group
-							if (g.getGroup() != null) {
-								g.getGroup().add(n);
-								n.setGroup(g.getGroup());
-								//								if (colorGroups.contains(g.getGroup(), false)) colorGroups.add(g.getGroup());
-							}
-							else {
-								Group group = new Group(g.getColor());
-								group.add(g);
-								group.add(n);
-								g.setGroup(group);
-								n.setGroup(group);
-								colorGroups.add(group);
-							}
-						}
-
-						// this means that we need to join the groups together as one
-						// if n's group does not contain this gridbox
-						else if (n.getGroup() != null 
-								&& !n.getGroup().contains(g, true)) {
-							if (g.getGroup() != null) {
-								g.getGroup().addAll(n.getGroup());
-								colorGroups.removeValue(n.getGroup(), true);
-								for (Object gridBox : n.getGroup()) 
-									((GridBox)gridBox).setGroup(g.getGroup());
-							}
-							else {
-								n.getGroup().add(g);
-								g.setGroup(n.getGroup());
-							}
-						}
-					}
-				}
+	private int updateColorMatchCounts() {
+		// every colored gridbox starts as its own group
+		for (int i = 0; i < boxes.length; i++) {
+			Color color = boxes[i].getColor();
+			if (color == Color.NONE || color == Color.REMOVED) 
+				labels[i] = -1;
+			else {
+				labels[i] = i;
+				groupSizes[i] = 1;
 			}
 		}
-		return colorGroups;
+
+		// join every gridbox with its left and top neighbors of the same color
+		for (int row = 0, i = 0; row < height; row++) {
+			for (int col = 0; col < width; col++, i++) {
+				if (labels[i] == -1) continue;
+				Color color = boxes[i].getColor();
+				if (col > 0 && labels[i-1] != -1 && boxes[i-1].getColor() == color) 
+					union(i, i-1);
+				if (row > 0 && labels[i-width] != -1 && boxes[i-width].getColor() == color) 
+					union(i, i-width);
+			}
+		}
+
+		// point every gridbox directly to its root, and count the roots
+		// of groups that are large enough to be chained
+		int numGroups = 0;
+		for (int i = 0; i < boxes.length; i++) {
+			if (labels[i] == -1) continue;
+			int root = find(i);
+			labels[i] = root;
+			if (root == i && groupSizes[i] >= minChainSize) 
+				numGroups++;
+		}
+		return numGroups;
+	}
+
+	/**
+	 * Returns the root gridbox index of the group containing the index specified
+	 */
+	private int find(int index) {
+		while (labels[index] != index) {
+			labels[index] = labels[labels[index]];
+			index = labels[index];
+		}
+		return index;
+	}
+
+	/**
+	 * Joins the groups of two gridboxes, keeping the larger group's root
+	 */
+	private void union(int first, int second) {
+		int firstRoot = find(first);
+		int secondRoot = find(second);
+		if (firstRoot == secondRoot) return;
+		if (groupSizes[firstRoot] < groupSizes[secondRoot]) {
+			int temp = firstRoot;
+			firstRoot = secondRoot;
+			secondRoot = temp;
+		}
+		labels[secondRoot] = firstRoot;
+		groupSizes[firstRoot] += groupSizes[secondRoot];
 	}
 
 	/**
@@ -856,16 +1408,14 @@ public class Grid {
 		//		System.out.println("Moves left: " + movesLeft + " Box: " + numBoxSpawned);
 
 		// CHALLENGE Mode
-		if (game.getGameMode() == GameMode.CHALLENGE) {
+		if (rules.getGameMode() == GameMode.CHALLENGE) {
 
 			if (numBoxSpawned > 0) {
 				// if no more move is allowed, we set the game state to be GAMEOVER
 				// and tell the Render class to update things accordingly
 				if (movesLeft == 0 && getNumColorGroups() == 0) {
-					if (deltaTime > stateChangeWaitTime) {
-						game.actionResolver.showLongToast("No more move left. Game is over!");
-						game.setGameState(GameState.GAMEOVER);
-					}
+					if (deltaTime > stateChangeWaitTime && listener != null) 
+						listener.onGameStateChanged(this, GameState.GAMEOVER);
 					return true;
 				}
 			}
@@ -873,10 +1423,8 @@ public class Grid {
 			else {
 				// if no more colored tiles are left, we transition to COMPLETE
 				if (movesLeft >= 0 && numBoxSpawned == 0) {
-					if (deltaTime > stateChangeWaitTime) {
-						game.actionResolver.showLongToast("Level comeplete!");
-						game.setGameState(GameState.COMPLETE);
-					}
+					if (deltaTime > stateChangeWaitTime && listener != null) 
+						listener.onGameStateChanged(this, GameState.COMPLETE);
 					return true;
 				}
 			}
@@ -0,0 +1,498 @@
+package com.code2play.grid.game;
+
+import java.util.Arrays;
+
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * Many boards of the same level stepped together, for simulations and level generation.
+ * Every board is kept in one primitive array, one board after another, so a batch of
+ * swipes walks straight through memory with no grid box objects, events, hashes or undo
+ * snapshots. Boards of up to 64 grid boxes are stored as the masks of a packed board,
+ * which is loaded with each board in turn, and larger boards as one byte per grid box.
+ * Boards follow the same rules as a grid: every swipe is
+ * resolved with its cascade, groups are found the same way, and in CLASSIC a box spawns
+ * after every swipe. Each board has its own random state, and spawns the same box as a
+ * packed grid seeded the same.
+ */
+public class GridBatch {
+
+	/** Low bits of a grid box, holding its color ordinal or BLOCKED **/
+	private static final int COLOR_MASK = 0x7;
+
+	/** Value of a blocked grid box **/
+	private static final int BLOCKED = 0x7;
+
+	/** Flag of a grid box that belongs to a chained group, to be removed on the next move **/
+	private static final int CHAINED = 0x8;
+
+	/** Cached color values to avoid allocating a new array on every lookup **/
+	private static final Color[] COLORS = Color.values();
+
+	/** Flags of the neighbors a grid box has **/
+	private static final int LEFT = 1;
+	private static final int RIGHT = 2;
+	private static final int UP = 4;
+	private static final int DOWN = 8;
+
+	private static final int NONE = Color.NONE.ordinal();
+	private static final int REMOVED = Color.REMOVED.ordinal();
+
+	private final GridRules rules;
+	private final LevelTemplate template;
+	private final int width;
+	private final int height;
+	private final int numCells;
+	private final int numBoards;
+	private final int minChainSize;
+
+	/** Number of grid boxes that can hold a box **/
+	private final int numOpen;
+
+	/** Number of colors boxes spawn in, after NONE **/
+	private final int numSpawnColors;
+
+	/** Masks of every board, board b starting at b*BitBoard.STATE_SIZE, null if too large **/
+	private final long[] masks;
+
+	/** Packed board that every board is loaded into while it is stepped **/
+	private final BitBoard bits;
+
+	/** Every grid box of every board, board b starting at b*numCells, null if packed **/
+	private final byte[] cells;
+
+	/** Per board state, indexed by board **/
+	private final int[] numSpawned;
+	private final int[] numCleared;
+	private final boolean[] moved;
+	private final long[] randomStates;
+
+	/** Generator that every board's random state is loaded into while it spawns **/
+	private final GridRandom random = new GridRandom(0L);
+
+	/** Neighbors of every grid box within the board, as LEFT, RIGHT, UP and DOWN flags **/
+	private final byte[] sides;
+
+	/** Work arrays for finding groups, shared by every board **/
+	private final int[] members;
+	private final int[] visits;
+	private int visit;
+
+	/**
+	 * Constructs the number of boards specified, all in the starting state of the level
+	 * @param rules
+	 * @param template
+	 * @param numBoards
+	 */
+	public GridBatch(GridRules rules, LevelTemplate template, int numBoards) {
+		this.rules = rules;
+		this.template = template;
+		this.numBoards = numBoards;
+		width = template.getWidth();
+		height = template.getHeight();
+		numCells = width*height;
+		minChainSize = template.getMinChainSize();
+		numOpen = numCells - template.getNumBlocked();
+
+		// same colors as Grid.getRandomColor
+		int colorLimit = width == 4 && height == 4 ? 2 : 1;
+		numSpawnColors = COLORS.length - colorLimit - 1;
+
+		if (BitBoard.fits(width, height)) {
+			bits = new BitBoard(width, height);
+			long blocked = 0L;
+			for (int i = 0; i < numCells; i++)
+				if (template.isBlocked(i)) blocked |= 1L << i;
+			bits.setBlocked(blocked);
+			masks = new long[numBoards*BitBoard.STATE_SIZE];
+			cells = null;
+		}
+		else {
+			bits = null;
+			masks = null;
+			cells = new byte[numBoards*numCells];
+		}
+		numSpawned = new int[numBoards];
+		numCleared = new int[numBoards];
+		moved = new boolean[numBoards];
+		randomStates = new long[numBoards];
+		members = new int[numCells];
+		visits = new int[numCells];
+		sides = new byte[numCells];
+		for (int i = 0; i < numCells; i++) {
+			int col = i % width;
+			sides[i] = (byte) ((col > 0 ? LEFT : 0) | (col < width-1 ? RIGHT : 0)
+					| (i >= width ? UP : 0) | (i < numCells-width ? DOWN : 0));
+		}
+		reset();
+	}
+
+	/**
+	 * Restores every board to the starting state of the level.
+	 * Random states are kept.
+	 */
+	public void reset() {
+		for (int b = 0; b < numBoards; b++)
+			reset(b);
+	}
+
+	/**
+	 * Restores the board specified to the starting state of the level.
+	 * Its random state is kept.
+	 * @param board
+	 */
+	public void reset(int board) {
+		if (bits != null) {
+			bits.clear();
+			for (int i = 0; i < numCells; i++)
+				bits.set(i, template.getColor(i));
+			bits.save(masks, board*BitBoard.STATE_SIZE);
+		}
+		else {
+			int offset = board*numCells;
+			for (int i = 0; i < numCells; i++)
+				cells[offset+i] = (byte) (template.isBlocked(i) ? BLOCKED : template.getColor(i).ordinal());
+		}
+		numSpawned[board] = template.getNumSpawned();
+		numCleared[board] = 0;
+		moved[board] = false;
+	}
+
+	public int getNumBoards() {
+		return numBoards;
+	}
+
+	/**
+	 * Seeds the random state of the board specified
+	 * @param board
+	 * @param seed
+	 */
+	public void setSeed(int board, long seed) {
+		randomStates[board] = seed;
+	}
+
+	public long getRandomState(int board) {
+		return randomStates[board];
+	}
+
+	/**
+	 * Swipes every board in its own direction, resolving every cascade,
+	 * then spawns a box on every board in CLASSIC
+	 * @param directions Direction of every board, or null to leave a board as it is
+	 */
+	public void update(Swipe[] directions) {
+		boolean spawns = rules.getGameMode() == GameMode.CLASSIC;
+		for (int b = 0; b < numBoards; b++)
+			update(b, directions[b], spawns);
+	}
+
+	/**
+	 * Swipes every board in the same direction
+	 * @param direction
+	 */
+	public void update(Swipe direction) {
+		boolean spawns = rules.getGameMode() == GameMode.CLASSIC;
+		for (int b = 0; b < numBoards; b++)
+			update(b, direction, spawns);
+	}
+
+	private void update(int board, Swipe direction, boolean spawns) {
+		numCleared[board] = 0;
+		if (direction == null) {
+			moved[board] = false;
+			return;
+		}
+		if (bits != null) {
+			updatePacked(board, direction, spawns);
+			return;
+		}
+		int offset = board*numCells;
+		moved[board] = move(board, offset, direction);
+		while (updateGroups(offset) > 0)
+			move(board, offset, direction);
+		if (spawns) spawn(board, offset);
+	}
+
+	/**
+	 * Returns whether or not the last update changed the board specified
+	 * @param board
+	 * @return
+	 */
+	public boolean hasMoved(int board) {
+		return moved[board];
+	}
+
+	/**
+	 * Returns the number of boxes cleared from the board specified by the last update
+	 * @param board
+	 * @return
+	 */
+	public int getNumCleared(int board) {
+		return numCleared[board];
+	}
+
+	public int getNumBoxSpawned(int board) {
+		return numSpawned[board];
+	}
+
+	/**
+	 * Returns whether or not no more box can spawn on the board specified
+	 * @param board
+	 * @return
+	 */
+	public boolean isFull(int board) {
+		return numSpawned[board] >= numOpen;
+	}
+
+	/**
+	 * Returns the color of a grid box of the board specified. Blocked grid boxes have no color.
+	 * @param board
+	 * @param index Zero-based index (id-1) of the grid box
+	 * @return
+	 */
+	public Color getColor(int board, int index) {
+		if (bits != null) {
+			bits.load(masks, board*BitBoard.STATE_SIZE);
+			return bits.get(index);
+		}
+		int value = cells[board*numCells + index] & COLOR_MASK;
+		return value == BLOCKED ? Color.NONE : COLORS[value];
+	}
+
+	/**
+	 * Steps a board on the packed board, which follows the same rules as a packed grid
+	 */
+	private void updatePacked(int board, Swipe direction, boolean spawns) {
+		BitBoard bits = this.bits;
+		int offset = board*BitBoard.STATE_SIZE;
+		bits.load(masks, offset);
+		moved[board] = bits.move(direction);
+		int cleared = bits.getNumRemoved();
+		while (bits.updateGroups(minChainSize) > 0) {
+			bits.move(direction);
+			cleared += bits.getNumRemoved();
+		}
+		numSpawned[board] -= cleared;
+		numCleared[board] = cleared;
+
+		if (spawns && numSpawned[board] < numOpen) {
+			long empty = bits.getEmpty();
+			int count = Long.bitCount(empty);
+			if (count > 0) {
+				random.setState(randomStates[board]);
+				int index = BitBoard.select(empty, random.nextInt(count));
+				bits.set(index, COLORS[1 + random.nextInt(numSpawnColors)]);
+				randomStates[board] = random.getState();
+				numSpawned[board]++;
+			}
+		}
+		bits.save(masks, offset);
+	}
+
+	/**
+	 * Empties the boxes removed by the last move, then compacts every line of the board
+	 * the same way as Grid.compactLines: boxes of chained groups are removed, and every
+	 * other box slides toward the edge of the direction until a box or a blocked grid box
+	 * @return True if any box is moved or removed
+	 */
+	private boolean move(int board, int offset, Swipe direction) {
+		byte[] cells = this.cells;
+		int start, lineStep, step, length, numLines;
+		switch(direction) {
+		case LEFT:
+			start = 0; lineStep = width; step = 1; length = width; numLines = height;
+			break;
+		case RIGHT:
+			start = width-1; lineStep = width; step = -1; length = width; numLines = height;
+			break;
+		case UP:
+			start = 0; lineStep = 1; step = width; length = height; numLines = width;
+			break;
+		default:
+			start = (height-1)*width; lineStep = 1; step = -width; length = height; numLines = width;
+			break;
+		}
+
+		boolean hasMoved = false;
+		int cleared = 0;
+		for (int line = 0; line < numLines; line++) {
+			int first = offset + start + line*lineStep;
+			int end = first + length*step;
+			int write = first;
+			for (int read = first; read != end; read += step) {
+				int value = cells[read];
+				int color = value & COLOR_MASK;
+				if (color == REMOVED) {
+					cells[read] = (byte) NONE;
+					continue;
+				}
+				if (color == NONE) continue;
+				if (color == BLOCKED) {
+					write = read + step;
+					continue;
+				}
+
+				if ((value & CHAINED) != 0) {
+					cells[read] = (byte) REMOVED;
+					cleared++;
+					hasMoved = true;
+					continue;
+				}
+
+				if (write != read) {
+					cells[write] = (byte) color;
+					cells[read] = (byte) NONE;
+					hasMoved = true;
+				}
+				write += step;
+			}
+		}
+		numSpawned[board] -= cleared;
+		numCleared[board] += cleared;
+		return hasMoved;
+	}
+
+	/**
+	 * Finds the non-diagonal same-color groups of the board, and flags the members of
+	 * the ones with at least the minimum chain size to be removed on the next move.
+	 * The move before always empties every flagged grid box, so no flag is left to clear.
+	 * @return Number of chained groups
+	 */
+	private int updateGroups(int offset) {
+		byte[] cells = this.cells;
+		byte[] sides = this.sides;
+		int[] members = this.members;
+		int[] visits = this.visits;
+		int mark = ++visit;
+		if (mark == Integer.MAX_VALUE) {
+			Arrays.fill(visits, 0);
+			visit = mark = 1;
+		}
+
+		int count = 0;
+		for (int i = 0; i < numCells; i++) {
+			int color = cells[offset+i];
+			if (color == NONE || color == REMOVED || color == BLOCKED || visits[i] == mark) continue;
+
+			// members double as the queue of the walk through the group
+			int size = 0;
+			members[size++] = i;
+			visits[i] = mark;
+			for (int k = 0; k < size; k++) {
+				int index = members[k];
+				int side = sides[index];
+				if ((side & LEFT) != 0 && visits[index-1] != mark && cells[offset+index-1] == color) {
+					visits[index-1] = mark;
+					members[size++] = index-1;
+				}
+				if ((side & RIGHT) != 0 && visits[index+1] != mark && cells[offset+index+1] == color) {
+					visits[index+1] = mark;
+					members[size++] = index+1;
+				}
+				if ((side & UP) != 0 && visits[index-width] != mark && cells[offset+index-width] == color) {
+					visits[index-width] = mark;
+					members[size++] = index-width;
+				}
+				if ((side & DOWN) != 0 && visits[index+width] != mark && cells[offset+index+width] == color) {
+					visits[index+width] = mark;
+					members[size++] = index+width;
+				}
+			}
+
+			if (size >= minChainSize) {
+				count++;
+				for (int k = 0; k < size; k++)
+					cells[offset+members[k]] |= CHAINED;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Spawns a random color on a random empty grid box of the board, picking the
+	 * grid box first and by its rank among the empty ones, like a packed grid does
+	 */
+	private void spawn(int board, int offset) {
+		if (numSpawned[board] >= numOpen) return;
+		byte[] cells = this.cells;
+		int numEmpty = 0;
+		for (int i = offset; i < offset+numCells; i++)
+			if (cells[i] == NONE) numEmpty++;
+		if (numEmpty == 0) return;
+
+		random.setState(randomStates[board]);
+		int rank = random.nextInt(numEmpty);
+		int color = 1 + random.nextInt(numSpawnColors);
+		randomStates[board] = random.getState();
+
+		for (int i = offset; ; i++) {
+			if (cells[i] == NONE && rank-- == 0) {
+				cells[i] = (byte) color;
+				break;
+			}
+		}
+		numSpawned[board]++;
+	}
+
+	/**
+	 * Plays random CLASSIC games on a batch of boards and on as many grids,
+	 * and prints how many board-steps per second each manages
+	 * @param args Number of boards, number of steps, then optionally width and height
+	 */
+	public static void main(String[] args) {
+		int numBoards = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int numSteps = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int width = args.length > 3 ? Integer.parseInt(args[2]) : 4;
+		int height = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		LevelTemplate empty = new LevelTemplate(0, width, height, 0, 0, 0, -1, 0, new byte[width*height]);
+
+		GridBatch batch = new GridBatch(GameMode.CLASSIC, empty, numBoards);
+		Grid[] grids = new Grid[numBoards];
+		for (int b = 0; b < numBoards; b++) {
+			batch.setSeed(b, b);
+			grids[b] = new Grid(GameMode.CLASSIC, empty);
+			grids[b].setSeed(b);
+		}
+
+		// the first round only warms up the compiler
+		long batchTime = 0, gridTime = 0;
+		for (int round = 0; round < 2; round++) {
+			batchTime = playBatch(batch, numSteps);
+			gridTime = playGrids(grids, numSteps);
+		}
+
+		long boardSteps = (long) numBoards*numSteps;
+		System.out.println(numBoards + " boards of " + width + "x" + height + ", " + numSteps + " steps");
+		System.out.println("Batch: " + Math.round(boardSteps*1e9 / Math.max(batchTime, 1)) + " board-steps/s");
+		System.out.println("Grids: " + Math.round(boardSteps*1e9 / Math.max(gridTime, 1)) + " board-steps/s");
+	}
+
+	private static long playBatch(GridBatch batch, int numSteps) {
+		Swipe[] swipes = Swipe.values();
+		Swipe[] directions = new Swipe[batch.getNumBoards()];
+		GridRandom moves = new GridRandom(1L);
+		long start = System.nanoTime();
+		for (int s = 0; s < numSteps; s++) {
+			for (int b = 0; b < directions.length; b++) {
+				if (batch.isFull(b)) batch.reset(b);
+				directions[b] = swipes[moves.nextInt(swipes.length)];
+			}
+			batch.update(directions);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long playGrids(Grid[] grids, int numSteps) {
+		Swipe[] swipes = Swipe.values();
+		GridRandom moves = new GridRandom(1L);
+		long start = System.nanoTime();
+		for (int s = 0; s < numSteps; s++) {
+			for (int b = 0; b < grids.length; b++) {
+				Grid grid = grids[b];
+				if (grid.getNumBoxSpawned() >= grid.getSize()) grid.restoreDefaultState();
+				grid.update(0, swipes[moves.nextInt(swipes.length)]);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
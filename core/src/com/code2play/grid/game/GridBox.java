@@ -18,25 +18,12 @@ public class GridBox {
 	/* color of the grid box */
 	private Color color;
 	
-	/* previous id of this grid box */
-	/* Previous Id is used to identify which gridBox this is moved from */
-	private int prevId;
-	
-	/* group of neighboring same-color gridboxes */
-	private Group group;
-	
-	/** whether or not this grid box is ready to be removed from rendered list **/
-	public boolean removed;
-	
 	/**
 	 * Constructs an initially empty gridbox with a specified id
 	 */
 	public GridBox(int id) {
 		this.id = id;
 		color = Color.NONE;
-		prevId = -1;
-		group = null;
-		removed = false;
 	}
 	
 	/**
@@ -47,15 +34,6 @@ public class GridBox {
 	public GridBox(int id, Color color) {
 		this(id);
 		this.setColor(color);
-		prevId = -1;
-	}
-	
-	public void setGroup(Group group) {
-		this.group = group;
-	}
-	
-	public Group getGroup() {
-		return group;
 	}
 	
 	/**
@@ -90,21 +68,11 @@ public class GridBox {
 		this.color = color;
 	}
 	
-	public void setPrevId(int id) {
-		prevId = id;
-	}
-	
-	public int getPrevId() {
-		return prevId;
-	}
-	
 	/**
 	 * Clears the color, if there is one assigned
 	 */
 	public void clearColor() {
 		color = Color.NONE;
-		prevId = -1;
-		group = null;
 	}
 	
 	public Color getColor() {
@@ -115,7 +83,6 @@ public class GridBox {
 	public String toString() {
 		String color = "";
 		String id = "";
-		String prevId = this.prevId-1 + "";
 		if (this.id > 9) id = this.id-1 + "";
 		else id = this.id-1 + " ";
 		
@@ -138,6 +105,6 @@ public class GridBox {
 		default:
 			break;
 		}
-		return id + "(" + prevId + ")" +  ": " + color;
+		return id + ": " + color;
 	}
 }
@@ -0,0 +1,201 @@
+package com.code2play.grid.game;
+
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * Reusable list of what happened to the grid during the last update, in the order
+ * it happened. Applying the events one after another to the previous grid gives
+ * the current grid, so that the renderer does not need to work out from the grid
+ * boxes which box went where. A move that clears chained groups is split into steps,
+ * one per slide of the cascade, which are meant to be shown one after another.
+ * Events are stored in primitive arrays and the list is cleared instead of
+ * reallocated on every update.
+ * Grid box positions are zero-based indices (id-1).
+ */
+public class GridEvents {
+
+	/** A box of a color appears at "to" **/
+	public static final int SPAWN = 0;
+
+	/** The box at "from" slides to the empty grid box at "to" **/
+	public static final int MOVE = 1;
+
+	/** The box at "from" is cleared as part of a chained group **/
+	public static final int REMOVE = 2;
+
+	/** The boxes at "from" and "to" trade places **/
+	public static final int SWAP = 3;
+
+	/** Cached color values to avoid allocating a new array on every lookup **/
+	private static final Color[] COLORS = Color.values();
+
+	private int[] types;
+	private int[] from;
+	private int[] to;
+	private byte[] colors;
+	private int size;
+
+	/** Index of the first event of every step **/
+	private int[] stepStarts;
+	private int numSteps = 1;
+
+	/**
+	 * Constructs an empty list with room for the number of events specified
+	 * @param capacity
+	 */
+	public GridEvents(int capacity) {
+		capacity = Math.max(capacity, 4);
+		types = new int[capacity];
+		from = new int[capacity];
+		to = new int[capacity];
+		colors = new byte[capacity];
+		stepStarts = new int[4];
+	}
+
+	/**
+	 * Removes all events without releasing memory
+	 */
+	public void clear() {
+		size = 0;
+		numSteps = 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of steps of the last update, which is at least one
+	 * @return
+	 */
+	public int getNumSteps() {
+		return numSteps;
+	}
+
+	/**
+	 * Returns the index of the first event of the step specified
+	 * @param step
+	 * @return
+	 */
+	public int getStepStart(int step) {
+		return stepStarts[step];
+	}
+
+	/**
+	 * Returns the index after the last event of the step specified
+	 * @param step
+	 * @return
+	 */
+	public int getStepEnd(int step) {
+		return step+1 < numSteps ? stepStarts[step+1] : size;
+	}
+
+	public int getType(int i) {
+		return types[i];
+	}
+
+	/**
+	 * Returns the grid box index the event starts from, or -1 for spawns
+	 * @param i
+	 * @return
+	 */
+	public int getFrom(int i) {
+		return from[i];
+	}
+
+	/**
+	 * Returns the grid box index the event ends at, or -1 for removals
+	 * @param i
+	 * @return
+	 */
+	public int getTo(int i) {
+		return to[i];
+	}
+
+	/**
+	 * Returns the color of the box that is spawned, moved or removed.
+	 * For swaps this is the color that ends up at "to".
+	 * @param i
+	 * @return
+	 */
+	public Color getColor(int i) {
+		return COLORS[colors[i]];
+	}
+
+	/**
+	 * Starts a new step, which happens after every event added so far
+	 */
+	void nextStep() {
+		if (numSteps == stepStarts.length) {
+			int[] grown = new int[numSteps*2];
+			System.arraycopy(stepStarts, 0, grown, 0, numSteps);
+			stepStarts = grown;
+		}
+		stepStarts[numSteps++] = size;
+	}
+
+	void spawn(int index, Color color) {
+		add(SPAWN, -1, index, color);
+	}
+
+	void move(int fromIndex, int toIndex, Color color) {
+		add(MOVE, fromIndex, toIndex, color);
+	}
+
+	void remove(int index, Color color) {
+		add(REMOVE, index, -1, color);
+	}
+
+	void swap(int fromIndex, int toIndex, Color color) {
+		add(SWAP, fromIndex, toIndex, color);
+	}
+
+	private void add(int type, int fromIndex, int toIndex, Color color) {
+		if (size == types.length) {
+			int capacity = size*2;
+			types = copyOf(types, capacity);
+			from = copyOf(from, capacity);
+			to = copyOf(to, capacity);
+			byte[] grown = new byte[capacity];
+			System.arraycopy(colors, 0, grown, 0, size);
+			colors = grown;
+		}
+		types[size] = type;
+		from[size] = fromIndex;
+		to[size] = toIndex;
+		colors[size] = (byte) color.ordinal();
+		size++;
+	}
+
+	private int[] copyOf(int[] array, int capacity) {
+		int[] grown = new int[capacity];
+		System.arraycopy(array, 0, grown, 0, size);
+		return grown;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int i = 0, step = 1; i < size; i++) {
+			if (i > 0) builder.append(", ");
+			for (; step < numSteps && stepStarts[step] == i; step++) 
+				builder.append("| ");
+			switch(types[i]) {
+			case SPAWN:
+				builder.append("spawn ").append(to[i]);
+				break;
+			case MOVE:
+				builder.append("move ").append(from[i]).append("->").append(to[i]);
+				break;
+			case REMOVE:
+				builder.append("remove ").append(from[i]);
+				break;
+			case SWAP:
+				builder.append("swap ").append(from[i]).append("<->").append(to[i]);
+				break;
+			}
+			builder.append(' ').append(COLORS[colors[i]]);
+		}
+		return builder.append(']').toString();
+	}
+}
@@ -0,0 +1,15 @@
+package com.code2play.grid.game;
+
+/**
+ * Receives the game state transitions of a grid, such as the level being
+ * completed or running out of moves
+ */
+public interface GridListener {
+
+	/**
+	 * Called once the grid reaches a new game state
+	 * @param grid
+	 * @param state
+	 */
+	void onGameStateChanged(Grid grid, GameState state);
+}
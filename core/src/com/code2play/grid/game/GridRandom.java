@@ -0,0 +1,113 @@
+package com.code2play.grid.game;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fast, seedable random number generator for spawning grid boxes, based on SplitMix64.
+ * Unlike java.util.Random it is not synchronized, so every grid or thread should own one.
+ * Its whole state is a single long, which can be saved and restored to replay the
+ * exact same spawns, and it can split off independent generators for other threads.
+ */
+public class GridRandom {
+
+	/** Odd constant added to the state on every step **/
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	/** Seeds of generators constructed without one, so that no two are alike **/
+	private static final AtomicLong seedUniquifier = new AtomicLong(System.nanoTime());
+
+	private long state;
+
+	/**
+	 * Constructs a generator with an unpredictable seed
+	 */
+	public GridRandom() {
+		this(mix(seedUniquifier.addAndGet(GOLDEN_GAMMA)) ^ System.nanoTime());
+	}
+
+	public GridRandom(long seed) {
+		state = seed;
+	}
+
+	/**
+	 * Restarts the sequence of the seed specified
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		state = seed;
+	}
+
+	/**
+	 * Returns the current state, from which setState continues the exact same sequence
+	 * @return
+	 */
+	public long getState() {
+		return state;
+	}
+
+	public void setState(long state) {
+		this.state = state;
+	}
+
+	/**
+	 * Returns a new generator whose sequence is independent of this one,
+	 * and advances this one
+	 * @return
+	 */
+	public GridRandom split() {
+		return new GridRandom(mixSplit(nextLong()));
+	}
+
+	public long nextLong() {
+		return mix(state += GOLDEN_GAMMA);
+	}
+
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+
+	/**
+	 * Returns a uniformly distributed integer between 0 inclusive and bound exclusive
+	 * @param bound Must be positive
+	 * @return
+	 */
+	public int nextInt(int bound) {
+		if (bound <= 0)
+			throw new IllegalArgumentException("Bound must be positive, got " + bound);
+
+		// multiply the upper 32 bits by the bound, and reject the few low products
+		// that would make smaller results more likely
+		long product = (nextLong() >>> 32) * bound;
+		if ((product & 0xFFFFFFFFL) < bound) {
+			long threshold = (0x100000000L - bound) % bound;
+			while ((product & 0xFFFFFFFFL) < threshold)
+				product = (nextLong() >>> 32) * bound;
+		}
+		return (int) (product >>> 32);
+	}
+
+	/**
+	 * Returns a uniformly distributed float between 0 inclusive and 1 exclusive
+	 * @return
+	 */
+	public float nextFloat() {
+		return (nextLong() >>> 40) * 0x1.0p-24f;
+	}
+
+	public boolean nextBoolean() {
+		return nextLong() < 0;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/** Different finalizer for split seeds, so that a split sequence is not a shifted copy **/
+	private static long mixSplit(long z) {
+		z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+		z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return z ^ (z >>> 33);
+	}
+}
@@ -0,0 +1,15 @@
+package com.code2play.grid.game;
+
+/**
+ * Rules that a grid is played by. Keeping them behind an interface lets a grid
+ * be created and updated without a running game, eg. in simulations and tools.
+ */
+public interface GridRules {
+
+	/**
+	 * Returns the mode that decides whether boxes spawn after every move,
+	 * and whether the level can be completed
+	 * @return
+	 */
+	GameMode getGameMode();
+}
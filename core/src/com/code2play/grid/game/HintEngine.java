@@ -0,0 +1,229 @@
+package com.code2play.grid.game;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finds the best next move of a CHALLENGE level on a background thread, so that
+ * the render thread is never blocked. A request copies the current state of the
+ * grid into an immutable level template, which the solver then plays from on its
+ * own grid within a short time budget. Hints are cached by state, so asking again,
+ * or after an undo, answers at once. A search that runs out of time is not cached:
+ * asking again for that state searches again with twice the budget.
+ */
+public class HintEngine {
+
+	/** Default time budget of a hint in millisec **/
+	public static final long DEFAULT_TIME_BUDGET = 50L;
+
+	/** Default number of hints kept in the cache **/
+	public static final int DEFAULT_CACHE_SIZE = 256;
+
+	/** Largest time budget a search is retried with after running out of time, in millisec **/
+	public static final long MAX_TIME_BUDGET = 1600L;
+
+	/** Memory limit of the transposition table of one hint, in bytes **/
+	private static final long MEMORY_LIMIT = 4L*1024*1024;
+
+	/** Hash of the states whose chained groups are yet to be removed **/
+	private static final long GROUPS_KEY = 0x2545F4914F6CDD1DL;
+
+	/**
+	 * Best next move found for a state
+	 */
+	public static class Hint {
+		private final Solver.Move move;
+		private final int numMoves;
+		private final boolean timedOut;
+
+		/** Time budget of the search, in millisec **/
+		private final long budget;
+
+		Hint(Solver.Result result, long budget) {
+			move = result.isSolved() && result.getNumMoves() > 0 ? result.getPath().get(0) : null;
+			numMoves = result.getNumMoves();
+			timedOut = result.isTimedOut();
+			this.budget = budget;
+		}
+
+		/**
+		 * Returns the first move of a shortest solution
+		 * @return Null if the level cannot be completed with the moves left, or no solution
+		 * was found in time
+		 */
+		public Solver.Move getMove() {
+			return move;
+		}
+
+		/**
+		 * Returns the number of moves of a shortest solution, -1 if none was found
+		 * @return
+		 */
+		public int getNumMoves() {
+			return numMoves;
+		}
+
+		/**
+		 * Returns whether or not the search ran out of time before finding a solution
+		 * @return
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final Map<Long, Hint> cache;
+
+	/** Last search of states that ran out of time, kept until they are searched again **/
+	private final Map<Long, Hint> timedOut;
+
+	/** States that a hint is being searched for **/
+	private final Set<Long> pending;
+
+	private volatile long timeBudget = DEFAULT_TIME_BUDGET;
+
+	public HintEngine() {
+		this(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Constructs an engine that caches at most the number of hints specified,
+	 * dropping the least recently used first
+	 * @param cacheSize
+	 */
+	public HintEngine(final int cacheSize) {
+		cache = new LinkedHashMap<Long, Hint>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Hint> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		timedOut = new LinkedHashMap<Long, Hint>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Hint> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		pending = new HashSet<Long>();
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "HintEngine");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the time a hint may be searched for, in millisec
+	 * @param millis
+	 */
+	public void setTimeBudget(long millis) {
+		timeBudget = millis;
+	}
+
+	/**
+	 * Returns the hint of the current state of the grid
+	 * @param grid
+	 * @return Null if the hint has not been requested or is still being searched for.
+	 * If the last search ran out of time, its hint has no move until requested again.
+	 */
+	public Hint getHint(Grid grid) {
+		long key = key(grid);
+		synchronized (cache) {
+			Hint hint = cache.get(key);
+			return hint != null ? hint : timedOut.get(key);
+		}
+	}
+
+	/**
+	 * Starts searching for the hint of the current state of the grid, unless it is
+	 * already cached or being searched for. A state whose last search ran out of time
+	 * is searched again with twice its budget, up to MAX_TIME_BUDGET. Must be called 
+	 * from the thread that updates the grid.
+	 * @param grid
+	 */
+	public void requestHint(Grid grid) {
+		final long key = key(grid);
+		long budget = timeBudget;
+		synchronized (cache) {
+			if (cache.containsKey(key) || !pending.add(key)) return;
+			Hint last = timedOut.remove(key);
+			if (last != null) budget = Math.max(budget, Math.min(last.budget*2, MAX_TIME_BUDGET));
+		}
+
+		final LevelTemplate state = grid.snapshot();
+		final boolean hasGroups = grid.getNumColorGroups() > 0;
+		final GridRules rules = grid.getRules();
+		final long searchBudget = budget;
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Hint hint = null;
+				try {
+					Grid work = new Grid(rules, state);
+					if (hasGroups) work.updateGroups();
+					Solver solver = new Solver(work);
+					solver.setParallelism(1);
+					solver.setTimeLimit(searchBudget);
+					solver.setMemoryLimit(MEMORY_LIMIT);
+					hint = new Hint(solver.solve(), searchBudget);
+				}
+				finally {
+					synchronized (cache) {
+						pending.remove(key);
+						if (hint != null && hint.isTimedOut()) timedOut.put(key, hint);
+						else if (hint != null) cache.put(key, hint);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Removes all cached hints
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+			timedOut.clear();
+		}
+	}
+
+	/**
+	 * Stops the background thread. No more hints can be requested.
+	 */
+	public void dispose() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the cache key of the state of the grid. The best move depends on the
+	 * boxes, on whether chained groups are pending, on the moves and swaps left, 
+	 * on the size of the groups the level clears and on the blocked grid boxes.
+	 */
+	private static long key(Grid grid) {
+		long key = grid.getHash() ^ mix(((long) grid.getMovesLeft() << 32) | (grid.getNumSwapsLeft() & 0xFFFFFFFFL))
+				^ mix(~grid.getMinChainSize()) ^ mix(grid.getBlockedHash());
+		return grid.getNumColorGroups() > 0 ? key ^ GROUPS_KEY : key;
+	}
+
+	private static long mix(long z) {
+		z = (z + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
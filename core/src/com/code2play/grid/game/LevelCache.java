@@ -0,0 +1,151 @@
+package com.code2play.grid.game;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the levels read from a level pack in memory, so that every level is
+ * decoded once per session however often it is played, restarted or browsed.
+ * Levels are immutable and shared by all the grids created from them.
+ * When the levels kept take more than the byte budget, the least recently
+ * used are dropped first. Safe to use from several threads.
+ */
+public class LevelCache {
+
+	/** Default memory budget of the levels kept, in bytes **/
+	public static final long DEFAULT_MAX_BYTES = 64*1024;
+
+	/** Estimated size of a level apart from its tiles, in bytes **/
+	private static final int LEVEL_OVERHEAD = 72;
+
+	private final LevelPack pack;
+	private final long maxBytes;
+	private final LinkedHashMap<Integer, LevelData> levels;
+	private long numBytes;
+
+	private long numHits;
+	private long numMisses;
+
+	public LevelCache(LevelPack pack) {
+		this(pack, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Constructs a cache of the levels of a pack
+	 * @param pack
+	 * @param maxBytes Memory budget of the levels kept, in bytes
+	 */
+	public LevelCache(LevelPack pack, long maxBytes) {
+		this.pack = pack;
+		this.maxBytes = maxBytes;
+		levels = new LinkedHashMap<Integer, LevelData>(16, .75f, true);
+	}
+
+	public LevelPack getPack() {
+		return pack;
+	}
+
+	/**
+	 * Returns whether or not the level specified is in the pack
+	 * @param level Level number
+	 * @return
+	 */
+	public boolean contains(int level) {
+		return pack.contains(level);
+	}
+
+	/**
+	 * Returns the level specified, reading it from the pack if it is not kept
+	 * @param level Level number
+	 * @return
+	 * @throws IllegalArgumentException If the level is not in the pack
+	 */
+	public LevelData getLevel(int level) {
+		synchronized (levels) {
+			LevelData data = levels.get(level);
+			if (data != null) {
+				numHits++;
+				return data;
+			}
+		}
+
+		// decode outside the lock, so that cached levels are not held up
+		LevelData data = pack.getLevel(level);
+		synchronized (levels) {
+			numMisses++;
+			LevelData kept = levels.get(level);
+			if (kept != null) return kept;
+			levels.put(level, data);
+			numBytes += sizeOf(data);
+			evict();
+		}
+		return data;
+	}
+
+	/**
+	 * Drops the least recently used levels until the levels kept fit the budget.
+	 * The most recent level is kept even if it alone does not fit.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Integer, LevelData>> it = levels.entrySet().iterator();
+		while (numBytes > maxBytes && levels.size() > 1) {
+			numBytes -= sizeOf(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	private static long sizeOf(LevelData data) {
+		return LEVEL_OVERHEAD + data.getWidth()*data.getHeight();
+	}
+
+	/**
+	 * Returns the number of levels kept
+	 * @return
+	 */
+	public int size() {
+		synchronized (levels) {
+			return levels.size();
+		}
+	}
+
+	/**
+	 * Returns the estimated memory taken by the levels kept, in bytes
+	 * @return
+	 */
+	public long getNumBytes() {
+		synchronized (levels) {
+			return numBytes;
+		}
+	}
+
+	/**
+	 * Returns the number of levels returned without reading the pack
+	 * @return
+	 */
+	public long getNumHits() {
+		synchronized (levels) {
+			return numHits;
+		}
+	}
+
+	/**
+	 * Returns the number of levels read from the pack
+	 * @return
+	 */
+	public long getNumMisses() {
+		synchronized (levels) {
+			return numMisses;
+		}
+	}
+
+	/**
+	 * Drops all the levels kept
+	 */
+	public void clear() {
+		synchronized (levels) {
+			levels.clear();
+			numBytes = 0;
+		}
+	}
+}
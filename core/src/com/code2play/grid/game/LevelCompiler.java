@@ -0,0 +1,117 @@
+package com.code2play.grid.game;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * Compiles the level files of a directory into a level pack at build time, so
+ * that the game never parses level text. Every level is validated first, and
+ * every error found in any of them is reported before failing, so that a broken
+ * level fails the build instead of the game. Besides the errors of the parser,
+ * levels must be numbered consecutively, and a level without random tiles must
+ * not start with fewer boxes of a color than a group needs, as it could never
+ * be completed.
+ */
+public class LevelCompiler {
+
+	private final List<String> errors = new ArrayList<String>();
+
+	/**
+	 * Returns the errors found by the last call to compile
+	 * @return
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Parses and validates every level file of a directory, named after its level number
+	 * @param directory
+	 * @return The levels in order, or null if any of them is invalid
+	 */
+	public List<LevelData> compile(FileHandle directory) {
+		errors.clear();
+		FileHandle[] files = directory.list(".lvl");
+		int[] numbers = new int[files.length];
+		List<FileHandle> named = new ArrayList<FileHandle>(files.length);
+		for (FileHandle file : files) {
+			try {
+				Integer.parseInt(file.nameWithoutExtension());
+				named.add(file);
+			}
+			catch (NumberFormatException e) {
+				errors.add(file.path() + ": Level file must be named after its level number");
+			}
+		}
+		files = named.toArray(new FileHandle[named.size()]);
+		Arrays.sort(files, new Comparator<FileHandle>() {
+			@Override
+			public int compare(FileHandle a, FileHandle b) {
+				return Integer.valueOf(a.nameWithoutExtension()).compareTo(Integer.valueOf(b.nameWithoutExtension()));
+			}
+		});
+
+		List<LevelData> levels = new ArrayList<LevelData>(files.length);
+		LevelParser parser = new LevelParser();
+		for (int i = 0; i < files.length; i++) {
+			numbers[i] = Integer.parseInt(files[i].nameWithoutExtension());
+			if (i > 0 && numbers[i] != numbers[i-1] + 1)
+				errors.add(files[i].path() + ": Expected level " + (numbers[i-1] + 1) + " after level " + numbers[i-1]);
+			try {
+				LevelData level = parser.parse(files[i]);
+				validate(files[i], level);
+				levels.add(level);
+			}
+			catch (LevelFormatException e) {
+				errors.add(e.getMessage());
+			}
+		}
+		if (files.length == 0)
+			errors.add(directory.path() + ": No level files found");
+		return errors.isEmpty() ? levels : null;
+	}
+
+	/**
+	 * Adds the errors of a level that parsed
+	 */
+	private void validate(FileHandle file, LevelData level) {
+		if (level.countTiles(LevelData.RANDOM) > 0) return;
+		for (Color color : Color.values()) {
+			if (color == Color.NONE || color == Color.REMOVED) continue;
+			int count = level.countTiles(color.ordinal());
+			if (count > 0 && count < level.getMinChainSize())
+				errors.add(file.path() + ": Level can never be completed, it has " + count + " " +
+						color.name().toLowerCase() + " boxes but groups need " + level.getMinChainSize());
+		}
+	}
+
+	/**
+	 * Compiles the level files of a directory into a level pack, exiting with
+	 * status 1 if any level is invalid
+	 * @param args Directory of level files, then the pack file to write
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: LevelCompiler <levelDir> <packFile>");
+			System.exit(2);
+		}
+		LevelCompiler compiler = new LevelCompiler();
+		List<LevelData> levels = compiler.compile(new FileHandle(new File(args[0])));
+		if (levels == null) {
+			for (String error : compiler.getErrors())
+				System.err.println(error);
+			System.err.println(compiler.getErrors().size() + " level errors");
+			System.exit(1);
+		}
+
+		FileHandle out = new FileHandle(new File(args[1]));
+		LevelPack.write(levels, out);
+		System.out.println("Compiled " + levels.size() + " levels into " + out.path() + ", " + out.length() + " bytes");
+	}
+}
@@ -0,0 +1,194 @@
+package com.code2play.grid.game;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * A level as written in a level file or a level pack, before its random tiles
+ * are picked. Tiles are kept as codes: color ordinals for colored and empty
+ * grid boxes, BLOCKED and RANDOM for the rest. A level file looks like
+ * <pre>
+ * //Grid Details:&lt;width&gt;,&lt;height&gt;,&lt;maxMoves&gt;,&lt;minGold&gt;,&lt;minSilver&gt;,&lt;maxTime&gt;,&lt;baseSwaps&gt;,[&lt;minChain&gt;]
+ * //Grid Tiles, x=none, ^=block, b=blue, g=green, r=red, y=yellow, ?=random
+ * 3,3,3,2,1,-1,0
+ * r,x,r,r,x,x,x,x,x
+ * </pre>
+ */
+public class LevelData {
+
+	/** Tile code of a blocked grid box, taking the code of REMOVED which levels cannot start with **/
+	public static final int BLOCKED = 5;
+
+	/** Tile code of a grid box that gets a random color when the level is loaded **/
+	public static final int RANDOM = 6;
+
+	/** Number of tile codes **/
+	static final int NUM_TILES = 7;
+
+	/** Number of colors, including REMOVED **/
+	private static final int NUM_COLORS = Color.values().length;
+
+	private final int level;
+	private final int width;
+	private final int height;
+	private final int movesLeft;
+	private final int minGoldMovesLeft;
+	private final int minSilverMovesLeft;
+	private final float levelTime;
+	private final int swapsLeft;
+	private final int minChainSize;
+
+	/** Tile code of every grid box, indexed by id-1 **/
+	private final byte[] tiles;
+
+	/**
+	 * Constructs a level from its details and the tile codes of all width*height
+	 * grid boxes. The tile array is copied.
+	 */
+	public LevelData(int level, int width, int height, int movesLeft, int minGoldMovesLeft,
+			int minSilverMovesLeft, float levelTime, int swapsLeft, int minChainSize, byte[] tiles) {
+		this(level, width, height, movesLeft, minGoldMovesLeft, minSilverMovesLeft, levelTime,
+				swapsLeft, minChainSize, tiles, true);
+	}
+
+	/**
+	 * Constructs a level, copying the tile array only if specified, 
+	 * so that readers can hand over the array they decoded into
+	 */
+	LevelData(int level, int width, int height, int movesLeft, int minGoldMovesLeft,
+			int minSilverMovesLeft, float levelTime, int swapsLeft, int minChainSize, byte[] tiles, boolean copy) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Grid dimension must be positive, got " + width + "x" + height);
+		if (tiles.length != width*height)
+			throw new IllegalArgumentException("Expected " + width*height + " tiles, got " + tiles.length);
+		for (int i = 0; i < tiles.length; i++)
+			if (tiles[i] < 0 || tiles[i] >= NUM_TILES)
+				throw new IllegalArgumentException("Unknown tile " + tiles[i] + " at grid box " + (i+1));
+		this.level = level;
+		this.width = width;
+		this.height = height;
+		this.movesLeft = movesLeft;
+		this.minGoldMovesLeft = minGoldMovesLeft;
+		this.minSilverMovesLeft = minSilverMovesLeft;
+		this.levelTime = levelTime;
+		this.swapsLeft = swapsLeft;
+		this.minChainSize = minChainSize;
+		this.tiles = copy ? tiles.clone() : tiles;
+	}
+
+	/**
+	 * Parses the content of a level file
+	 * @param level Level number
+	 * @param content
+	 * @return
+	 * @throws LevelFormatException If the content is malformed
+	 */
+	public static LevelData parse(int level, String content) {
+		return new LevelParser().parse("level " + level, level, content);
+	}
+
+	/**
+	 * Reads and parses a level file named after its level number
+	 * @param file
+	 * @return
+	 * @throws LevelFormatException If the content is malformed
+	 */
+	public static LevelData load(FileHandle file) {
+		return new LevelParser().parse(file);
+	}
+
+	/**
+	 * Returns the starting state of this level, picking a color for every random tile
+	 * @param random Generator to pick the colors with
+	 * @return
+	 */
+	public LevelTemplate toTemplate(GridRandom random) {
+		byte[] colors = new byte[tiles.length];
+		boolean[] blocked = null;
+		for (int i = 0; i < tiles.length; i++) {
+			if (tiles[i] == BLOCKED) {
+				if (blocked == null) blocked = new boolean[tiles.length];
+				blocked[i] = true;
+			}
+			else if (tiles[i] == RANDOM)
+				colors[i] = (byte) Grid.getRandomColor(random, width, height).ordinal();
+			else
+				colors[i] = tiles[i];
+		}
+		return new LevelTemplate(level, width, height, movesLeft, minGoldMovesLeft, minSilverMovesLeft,
+				levelTime, swapsLeft, colors, blocked, minChainSize);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getMovesLeft() {
+		return movesLeft;
+	}
+
+	public int getMinGoldMovesLeft() {
+		return minGoldMovesLeft;
+	}
+
+	public int getMinSilverMovesLeft() {
+		return minSilverMovesLeft;
+	}
+
+	public float getLevelTime() {
+		return levelTime;
+	}
+
+	public int getSwapsLeft() {
+		return swapsLeft;
+	}
+
+	public int getMinChainSize() {
+		return minChainSize;
+	}
+
+	/**
+	 * Returns the number of grid boxes with the tile code specified
+	 * @param tile Color ordinal, BLOCKED or RANDOM
+	 * @return
+	 */
+	public int countTiles(int tile) {
+		int count = 0;
+		for (int i = 0; i < tiles.length; i++)
+			if (tiles[i] == tile) count++;
+		return count;
+	}
+
+	/**
+	 * Returns the Zobrist hash of the starting state of this level, the same as
+	 * Grid.getHash of a grid just loaded from it
+	 * @return 0 if the level has random tiles, so that its starting state is not known
+	 */
+	public long computeStartHash() {
+		long[] keys = Grid.zobristKeys(width, height);
+		long hash = 0L;
+		for (int i = 0; i < tiles.length; i++) {
+			if (tiles[i] == RANDOM) return 0L;
+			if (tiles[i] != BLOCKED && tiles[i] != Color.NONE.ordinal())
+				hash ^= keys[i*NUM_COLORS + tiles[i]];
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the tile code of the grid box at the index specified
+	 * @param index Zero-based index (id-1) of the grid box
+	 * @return Color ordinal, BLOCKED or RANDOM
+	 */
+	public int getTile(int index) {
+		return tiles[index];
+	}
+}
@@ -0,0 +1,39 @@
+package com.code2play.grid.game;
+
+/**
+ * Thrown when the content of a level file is malformed, with the position of the
+ * first character that could not be parsed
+ */
+public class LevelFormatException extends IllegalArgumentException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String source;
+	private final int line;
+	private final int column;
+
+	/**
+	 * @param source Name of the level file
+	 * @param line One-based line number
+	 * @param column One-based column number
+	 * @param message
+	 */
+	public LevelFormatException(String source, int line, int column, String message) {
+		super(source + ":" + line + ":" + column + ": " + message);
+		this.source = source;
+		this.line = line;
+		this.column = column;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+}
@@ -0,0 +1,324 @@
+package com.code2play.grid.game;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * Generates CHALLENGE levels of a given dimension and number of colors whose
+ * shortest solution takes exactly a target number of moves, as verified by the solver.
+ * Candidates are random boards, tried on several threads at once. Boards already
+ * tried are skipped by their Zobrist hash, so no two levels are the same, and so are
+ * boards that start with a group large enough to be cleared.
+ * The move limit and reward thresholds of each level are derived from its shortest
+ * solution the same way as the hand-made levels: gold for finishing in the fewest
+ * moves, silver for finishing in twice that.
+ */
+public class LevelGenerator {
+
+	/** Default number of moves allowed, as a multiple of the shortest solution **/
+	public static final int DEFAULT_MOVE_ALLOWANCE = 3;
+
+	/** Default memory limit of the transposition table of one candidate, in bytes **/
+	public static final long DEFAULT_MEMORY_LIMIT = 1024*1024;
+
+	/** Default time limit of the search of one candidate, in millisec **/
+	public static final long DEFAULT_TIME_LIMIT = 2000;
+
+	private static final char[] TILES = { 'x', 'b', 'g', 'r', 'y' };
+
+	private final int width;
+	private final int height;
+	private final int numColors;
+	private int targetMoves = 3;
+	private int numSwaps;
+	private int minChainSize = Grid.DEFAULT_MIN_CHAIN_SIZE;
+	private float fillRate = .75f;
+	private int moveAllowance = DEFAULT_MOVE_ALLOWANCE;
+	private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+	private long timeLimit = DEFAULT_TIME_LIMIT;
+	private long maxCandidates = Long.MAX_VALUE;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private long seed = System.nanoTime();
+
+	/** Number of candidates tried by the last run **/
+	private long numCandidates;
+
+	/**
+	 * Constructs a generator of levels of the dimension specified,
+	 * using the first numColors colors
+	 * @param width
+	 * @param height
+	 * @param numColors Between 1 and 4
+	 */
+	public LevelGenerator(int width, int height, int numColors) {
+		if (numColors < 1 || numColors > TILES.length-1)
+			throw new IllegalArgumentException("Number of colors must be between 1 and " +
+					(TILES.length-1) + ", got " + numColors);
+		this.width = width;
+		this.height = height;
+		this.numColors = numColors;
+	}
+
+	/**
+	 * Sets the exact number of moves of the shortest solution of every level
+	 * @param moves
+	 */
+	public void setTargetMoves(int moves) {
+		targetMoves = moves;
+	}
+
+	/**
+	 * Sets the number of swaps given in every level
+	 * @param swaps
+	 */
+	public void setNumSwaps(int swaps) {
+		numSwaps = swaps;
+	}
+
+	/**
+	 * Sets the number of same-color boxes a group needs to be cleared in every level
+	 * @param size At least 2
+	 */
+	public void setMinChainSize(int size) {
+		minChainSize = size;
+	}
+
+	/**
+	 * Sets the chance of every grid box to start with a color
+	 * @param rate Between 0 and 1
+	 */
+	public void setFillRate(float rate) {
+		fillRate = rate;
+	}
+
+	/**
+	 * Sets the number of moves allowed in every level, as a multiple of its shortest solution
+	 * @param allowance
+	 */
+	public void setMoveAllowance(int allowance) {
+		moveAllowance = Math.max(allowance, 1);
+	}
+
+	/**
+	 * Sets the memory limit of the transposition table used to solve each candidate
+	 * @param bytes
+	 */
+	public void setMemoryLimit(long bytes) {
+		memoryLimit = bytes;
+	}
+
+	/**
+	 * Sets the time limit of the search of each candidate. Candidates that take longer are skipped.
+	 * @param millis
+	 */
+	public void setTimeLimit(long millis) {
+		timeLimit = millis;
+	}
+
+	/**
+	 * Sets the number of candidates after which generating stops, even with fewer levels found
+	 * @param candidates
+	 */
+	public void setMaxCandidates(long candidates) {
+		maxCandidates = candidates;
+	}
+
+	/**
+	 * Sets the number of threads that try candidates at the same time.
+	 * Defaults to the number of available processors.
+	 * @param threads
+	 */
+	public void setParallelism(int threads) {
+		parallelism = Math.max(threads, 1);
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the number of candidates tried by the last call to generate
+	 * @return
+	 */
+	public long getNumCandidates() {
+		return numCandidates;
+	}
+
+	/**
+	 * Generates the number of levels specified, numbered from firstLevel in the order found
+	 * @param count
+	 * @param firstLevel
+	 * @return
+	 */
+	public List<LevelTemplate> generate(final int count, final int firstLevel) {
+		final List<LevelTemplate> levels = Collections.synchronizedList(new ArrayList<LevelTemplate>(count));
+		final Set<Long> seen = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		final AtomicLong candidates = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<?>> results = new ArrayList<Future<?>>(parallelism);
+		try {
+			GridRandom random = new GridRandom(seed);
+			for (int t = 0; t < parallelism; t++) {
+				final GridRandom workerRandom = random.split();
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						generateLevels(workerRandom, count, firstLevel, levels, seen, candidates);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> result : results)
+				result.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Level generation interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Level generation failed", e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		numCandidates = candidates.get();
+
+		synchronized (levels) {
+			return new ArrayList<LevelTemplate>(levels.subList(0, Math.min(count, levels.size())));
+		}
+	}
+
+	/**
+	 * Tries candidates on one thread until enough levels are found by all threads
+	 */
+	private void generateLevels(GridRandom random, int count, int firstLevel,
+			List<LevelTemplate> levels, Set<Long> seen, AtomicLong candidates) {
+		byte[] colors = new byte[width*height];
+		int[] colorCounts = new int[numColors+1];
+		while (levels.size() < count && candidates.getAndIncrement() < maxCandidates) {
+			if (!randomBoard(random, colors, colorCounts)) continue;
+
+			Grid grid = new Grid(GameMode.CHALLENGE, new LevelTemplate(0, width, height, targetMoves,
+					0, 0, -1, numSwaps, colors, null, minChainSize));
+
+			// a group that is already large enough would be cleared by any first move
+			grid.updateGroups();
+			if (grid.getNumColorGroups() > 0 || !seen.add(grid.getHash())) continue;
+
+			Solver solver = new Solver(grid);
+			solver.setParallelism(1);
+			solver.setMaxDepth(targetMoves);
+			solver.setMemoryLimit(memoryLimit);
+			solver.setTimeLimit(timeLimit);
+			Solver.Result result = solver.solve();
+			if (result.getNumMoves() != targetMoves) continue;
+
+			int maxMoves = targetMoves*moveAllowance;
+			synchronized (levels) {
+				if (levels.size() >= count) return;
+				levels.add(new LevelTemplate(firstLevel + levels.size(), width, height, maxMoves,
+						maxMoves - targetMoves, Math.max(maxMoves - 2*targetMoves, 0), -1, numSwaps, colors,
+						null, minChainSize));
+			}
+		}
+	}
+
+	/**
+	 * Fills the colors of a random board. Boards with fewer boxes of a color than
+	 * a group needs can never be cleared, so they are not worth solving.
+	 * @return True if the board is worth solving
+	 */
+	private boolean randomBoard(GridRandom random, byte[] colors, int[] colorCounts) {
+		for (int c = 0; c < colorCounts.length; c++)
+			colorCounts[c] = 0;
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = random.nextFloat() < fillRate ? (byte) (1 + random.nextInt(numColors)) : 0;
+			colorCounts[colors[i]]++;
+		}
+		if (colorCounts[0] == colors.length) return false;
+		for (int c = 1; c < colorCounts.length; c++)
+			if (colorCounts[c] > 0 && colorCounts[c] < minChainSize) return false;
+		return true;
+	}
+
+	/**
+	 * Returns the content of a level file for the template specified. The minimum
+	 * chain size is only written if it is not the default.
+	 * @param level
+	 * @return
+	 */
+	public static String toLevelString(LevelTemplate level) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("//Grid Details:<width>,<height>,<maxMoves>,<minGold>,<minSilver>,<maxTime>,<baseSwaps>,[<minChain>]\n");
+		builder.append("//Grid Tiles, x=none, ^=block, b=blue, g=green, r=red, y=yellow, ?=random\n");
+		builder.append(level.getWidth()).append(',').append(level.getHeight()).append(',')
+			.append(level.getMovesLeft()).append(',').append(level.getMinGoldMovesLeft()).append(',')
+			.append(level.getMinSilverMovesLeft()).append(',').append(Math.round(level.getLevelTime())).append(',')
+			.append(level.getSwapsLeft());
+		if (level.getMinChainSize() != Grid.DEFAULT_MIN_CHAIN_SIZE) 
+			builder.append(',').append(level.getMinChainSize());
+		builder.append('\n');
+		int size = level.getWidth()*level.getHeight();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) builder.append(',');
+			Color color = level.getColor(i);
+			if (level.isBlocked(i)) 
+				builder.append('^');
+			else
+				builder.append(color.ordinal() < TILES.length ? TILES[color.ordinal()] : 'x');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes every level as <level>.lvl into the directory specified
+	 * @param levels
+	 * @param directory
+	 */
+	public static void write(List<LevelTemplate> levels, FileHandle directory) {
+		for (LevelTemplate level : levels)
+			directory.child(level.getLevel() + ".lvl").writeString(toLevelString(level), false);
+	}
+
+	/**
+	 * Generates levels from the command line
+	 * @param args Width, height, number of colors, target moves, number of levels,
+	 * output directory, then optionally first level number, number of swaps and seed
+	 */
+	public static void main(String[] args) {
+		if (args.length < 6) {
+			System.out.println("Usage: LevelGenerator <width> <height> <colors> <moves> <count> <dir> " +
+					"[firstLevel] [swaps] [seed]");
+			System.exit(2);
+		}
+		LevelGenerator generator = new LevelGenerator(Integer.parseInt(args[0]),
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		generator.setTargetMoves(Integer.parseInt(args[3]));
+		int count = Integer.parseInt(args[4]);
+		FileHandle directory = new FileHandle(new File(args[5]));
+		int firstLevel = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+		if (args.length > 7) generator.setNumSwaps(Integer.parseInt(args[7]));
+		if (args.length > 8) generator.setSeed(Long.parseLong(args[8]));
+
+		long start = System.currentTimeMillis();
+		List<LevelTemplate> levels = generator.generate(count, firstLevel);
+		directory.mkdirs();
+		write(levels, directory);
+		long time = System.currentTimeMillis() - start;
+		System.out.println("Generated " + levels.size() + " levels from " + generator.getNumCandidates() +
+				" candidates in " + time + " ms");
+	}
+}
@@ -0,0 +1,358 @@
+package com.code2play.grid.game;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import com.badlogic.gdx.Files.FileType;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Read-only pack of consecutive levels in one binary file, so that a level is
+ * fetched by its number without reading or parsing any other level. The header
+ * holds the number of the first level and the offset of every level, followed by
+ * the levels themselves: their details in fixed size fields, the metadata computed
+ * when the pack was compiled, then every tile in three bits. Packs on the file
+ * system are memory-mapped. Packs inside the application, such as Android assets,
+ * cannot be, so only their index is read when opened, and each level is read by
+ * skipping straight to its offset. Skipping only seeks if the pack is stored
+ * uncompressed, otherwise every level is inflated from the start of the pack,
+ * so the Android build keeps aapt from compressing .pack assets.
+ */
+public class LevelPack {
+
+	/** 
+	 * First bytes of every level pack, the last one being the format version. 
+	 * Version 1 had no metadata.
+	 */
+	private static final byte[] MAGIC = { 'G', 'L', 'P', 2 };
+
+	/** Size of the magic, number of levels and first level **/
+	private static final int HEADER_SIZE = MAGIC.length + 8;
+
+	/** Size of the details of a level **/
+	private static final int DETAILS_SIZE = 15;
+
+	/** Colors whose number of grid boxes is kept as metadata **/
+	private static final GridBox.Color[] COUNTED_COLORS = { GridBox.Color.BLUE, GridBox.Color.GREEN, 
+		GridBox.Color.RED, GridBox.Color.YELLOW };
+
+	/** Size of the details and metadata of a level before its tiles **/
+	private static final int RECORD_HEADER_SIZE = DETAILS_SIZE + 8 + COUNTED_COLORS.length*2;
+
+	private static final int TILE_BITS = 3;
+	private static final int TILE_MASK = (1 << TILE_BITS) - 1;
+
+	private final int firstLevel;
+
+	/** Offset of every level in the pack, and the end of the last one **/
+	private final int[] offsets;
+
+	/** Whole pack, or null if every level is read from the file instead **/
+	private final ByteBuffer data;
+	private final FileHandle file;
+
+	private LevelPack(int firstLevel, int[] offsets, ByteBuffer data, FileHandle file) {
+		this.firstLevel = firstLevel;
+		this.offsets = offsets;
+		this.data = data;
+		this.file = file;
+	}
+
+	/**
+	 * Opens a level pack, memory-mapping it if it is on the file system
+	 * @param file
+	 * @return
+	 * @throws GdxRuntimeException If the file cannot be read or is not a level pack
+	 */
+	public static LevelPack open(FileHandle file) {
+		if (file.type() != FileType.Classpath && file.file().isFile()) {
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(file.file(), "r");
+				ByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				return new LevelPack(readFirstLevel(data), readOffsets(data), data, file);
+			}
+			catch (IOException e) {
+				throw new GdxRuntimeException("Error reading level pack: " + file, e);
+			}
+			finally {
+				StreamUtils.closeQuietly(raf);
+			}
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(file.read());
+			byte[] header = new byte[HEADER_SIZE];
+			in.readFully(header);
+			ByteBuffer headerData = ByteBuffer.wrap(header);
+			int firstLevel = readFirstLevel(headerData);
+			byte[] index = new byte[(headerData.getInt(MAGIC.length)+1)*4];
+			in.readFully(index);
+			ByteBuffer all = ByteBuffer.allocate(header.length + index.length);
+			all.put(header).put(index);
+			return new LevelPack(firstLevel, readOffsets(all), null, file);
+		}
+		catch (IOException e) {
+			throw new GdxRuntimeException("Error reading level pack: " + file, e);
+		}
+		finally {
+			StreamUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Reads a level pack from the bytes returned by toByteArray
+	 * @param bytes
+	 * @return
+	 * @throws IllegalArgumentException If the bytes are not a level pack
+	 */
+	public static LevelPack fromByteArray(byte[] bytes) {
+		ByteBuffer data = ByteBuffer.wrap(bytes);
+		return new LevelPack(readFirstLevel(data), readOffsets(data), data, null);
+	}
+
+	private static int readFirstLevel(ByteBuffer data) {
+		for (int i = 0; i < MAGIC.length; i++)
+			if (data.limit() <= i || data.get(i) != MAGIC[i])
+				throw new IllegalArgumentException("Not a level pack of version " + MAGIC[MAGIC.length-1]);
+		if (data.limit() < HEADER_SIZE)
+			throw new IllegalArgumentException("Level pack is truncated");
+		return data.getInt(MAGIC.length + 4);
+	}
+
+	private static int[] readOffsets(ByteBuffer data) {
+		int numLevels = data.getInt(MAGIC.length);
+		if (numLevels < 0 || HEADER_SIZE + (numLevels+1L)*4 > data.limit())
+			throw new IllegalArgumentException("Level pack is truncated");
+		int[] offsets = new int[numLevels+1];
+		for (int i = 0; i <= numLevels; i++) {
+			offsets[i] = data.getInt(HEADER_SIZE + i*4);
+			if (i > 0 && offsets[i] < offsets[i-1] + RECORD_HEADER_SIZE)
+				throw new IllegalArgumentException("Bad offset of level " + (i-1));
+		}
+		return offsets;
+	}
+
+	public int getFirstLevel() {
+		return firstLevel;
+	}
+
+	public int getNumLevels() {
+		return offsets.length-1;
+	}
+
+	/**
+	 * Returns whether or not the level specified is in this pack
+	 * @param level Level number
+	 * @return
+	 */
+	public boolean contains(int level) {
+		return level >= firstLevel && level - firstLevel < getNumLevels();
+	}
+
+	/**
+	 * Decodes the level specified, reading only its own bytes
+	 * @param level Level number
+	 * @return
+	 * @throws IllegalArgumentException If the level is not in this pack
+	 */
+	public LevelData getLevel(int level) {
+		checkLevel(level);
+		int length = offsets[level - firstLevel + 1] - offsets[level - firstLevel];
+		return decode(level, record(level, length), length);
+	}
+
+	/**
+	 * Returns the Zobrist hash of the starting state of the level specified,
+	 * without decoding the level
+	 * @param level Level number
+	 * @return 0 if the level has random tiles
+	 * @see LevelData#computeStartHash()
+	 */
+	public long getStartHash(int level) {
+		return record(level, RECORD_HEADER_SIZE).getLong(DETAILS_SIZE);
+	}
+
+	/**
+	 * Returns the number of grid boxes the level specified starts with of a color,
+	 * not counting random tiles, without decoding the level
+	 * @param level Level number
+	 * @param color BLUE, GREEN, RED or YELLOW
+	 * @return
+	 */
+	public int getColorCount(int level, GridBox.Color color) {
+		int c = color.ordinal() - GridBox.Color.BLUE.ordinal();
+		if (c < 0 || c >= COUNTED_COLORS.length) 
+			throw new IllegalArgumentException("No count is kept of " + color);
+		return record(level, RECORD_HEADER_SIZE).getShort(DETAILS_SIZE + 8 + c*2) & 0xFFFF;
+	}
+
+	private void checkLevel(int level) {
+		if (!contains(level))
+			throw new IllegalArgumentException("Level " + level + " is not in the pack, which has levels " +
+					firstLevel + " to " + (firstLevel + getNumLevels() - 1));
+	}
+
+	/**
+	 * Returns the first bytes of the level specified
+	 * @param level Level number
+	 * @param length Number of bytes needed, at most the size of the level
+	 * @throws IllegalArgumentException If the level is not in this pack
+	 */
+	private ByteBuffer record(int level, int length) {
+		checkLevel(level);
+		int i = level - firstLevel;
+		int offset = offsets[i];
+		if (data != null) {
+			if (offsets[i+1] > data.limit()) throw new IllegalArgumentException("Level pack is truncated");
+			ByteBuffer record = data.duplicate();
+			record.position(offset);
+			return record.slice();
+		}
+		return ByteBuffer.wrap(readRecord(offset, length));
+	}
+
+	/**
+	 * Reads the bytes of one level from the file, skipping everything before it
+	 */
+	private byte[] readRecord(int offset, int length) {
+		InputStream in = null;
+		try {
+			in = file.read();
+			long skipped = 0;
+			while (skipped < offset) {
+				long n = in.skip(offset - skipped);
+				if (n <= 0) {
+					if (in.read() < 0) throw new IllegalArgumentException("Level pack is truncated");
+					n = 1;
+				}
+				skipped += n;
+			}
+			byte[] bytes = new byte[length];
+			new DataInputStream(in).readFully(bytes);
+			return bytes;
+		}
+		catch (IOException e) {
+			throw new GdxRuntimeException("Error reading level pack: " + file, e);
+		}
+		finally {
+			StreamUtils.closeQuietly(in);
+		}
+	}
+
+	private static LevelData decode(int level, ByteBuffer record, int length) {
+		int width = record.get(0) & 0xFF;
+		int height = record.get(1) & 0xFF;
+		int movesLeft = record.getShort(2);
+		int minGold = record.getShort(4);
+		int minSilver = record.getShort(6);
+		float levelTime = record.getFloat(8);
+		int swapsLeft = record.getShort(12);
+		int minChainSize = record.get(14) & 0xFF;
+
+		byte[] tiles = new byte[width*height];
+		if (length < RECORD_HEADER_SIZE + tileBytes(tiles.length))
+			throw new IllegalArgumentException("Level " + level + " is truncated");
+		long bits = 0;
+		int numBits = 0;
+		int pos = RECORD_HEADER_SIZE;
+		for (int i = 0; i < tiles.length; i++) {
+			if (numBits < TILE_BITS) {
+				bits |= (long) (record.get(pos++) & 0xFF) << numBits;
+				numBits += 8;
+			}
+			tiles[i] = (byte) (bits & TILE_MASK);
+			bits >>>= TILE_BITS;
+			numBits -= TILE_BITS;
+		}
+		return new LevelData(level, width, height, movesLeft, minGold, minSilver,
+				levelTime, swapsLeft, minChainSize, tiles, false);
+	}
+
+	private static int tileBytes(int numTiles) {
+		return (numTiles*TILE_BITS + 7) / 8;
+	}
+
+	/**
+	 * Returns the pack of the levels specified encoded as bytes, 
+	 * computing the metadata of every level
+	 * @param levels Consecutive levels in order
+	 * @return
+	 * @throws IllegalArgumentException If the levels are not consecutive, or do not fit the format
+	 */
+	public static byte[] toByteArray(List<LevelData> levels) {
+		Replay.ByteWriter out = new Replay.ByteWriter(HEADER_SIZE + (levels.size()+1)*4 + levels.size()*48);
+		int firstLevel = levels.isEmpty() ? 1 : levels.get(0).getLevel();
+		out.write(MAGIC, MAGIC.length);
+		out.writeLong(levels.size(), 4);
+		out.writeLong(firstLevel, 4);
+		for (int i = 0; i <= levels.size(); i++)
+			out.writeLong(0, 4);
+
+		for (int i = 0; i < levels.size(); i++) {
+			LevelData level = levels.get(i);
+			if (level.getLevel() != firstLevel + i)
+				throw new IllegalArgumentException("Expected level " + (firstLevel + i) + ", got " + level.getLevel());
+			if (level.getWidth() > 0xFF || level.getHeight() > 0xFF || level.getMinChainSize() > 0xFF)
+				throw new IllegalArgumentException("Level " + level.getLevel() + " does not fit a level pack");
+			setOffset(out, i, out.size());
+			out.writeByte(level.getWidth());
+			out.writeByte(level.getHeight());
+			writeShort(out, level.getMovesLeft(), level);
+			writeShort(out, level.getMinGoldMovesLeft(), level);
+			writeShort(out, level.getMinSilverMovesLeft(), level);
+			out.writeLong(Float.floatToIntBits(level.getLevelTime()), 4);
+			writeShort(out, level.getSwapsLeft(), level);
+			out.writeByte(level.getMinChainSize());
+			out.writeLong(level.computeStartHash(), 8);
+			for (GridBox.Color color : COUNTED_COLORS)
+				out.writeLong(level.countTiles(color.ordinal()), 2);
+
+			int numTiles = level.getWidth()*level.getHeight();
+			long bits = 0;
+			int numBits = 0;
+			for (int t = 0; t < numTiles; t++) {
+				bits |= (long) level.getTile(t) << numBits;
+				numBits += TILE_BITS;
+				while (numBits >= 8) {
+					out.writeByte((int) bits);
+					bits >>>= 8;
+					numBits -= 8;
+				}
+			}
+			if (numBits > 0) out.writeByte((int) bits);
+		}
+		setOffset(out, levels.size(), out.size());
+		return out.toByteArray();
+	}
+
+	private static void setOffset(Replay.ByteWriter out, int index, int offset) {
+		byte[] bytes = out.getBytes();
+		int pos = HEADER_SIZE + index*4;
+		for (int i = 0; i < 4; i++)
+			bytes[pos+i] = (byte) (offset >>> (24 - i*8));
+	}
+
+	private static void writeShort(Replay.ByteWriter out, int value, LevelData level) {
+		if (value < Short.MIN_VALUE || value > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Level " + level.getLevel() + " does not fit a level pack");
+		out.writeLong(value, 2);
+	}
+
+	/**
+	 * Writes the pack of the levels specified into a file
+	 * @param levels Consecutive levels in order
+	 * @param file
+	 */
+	public static void write(List<LevelData> levels, FileHandle file) {
+		file.writeBytes(toByteArray(levels), false);
+	}
+}
@@ -0,0 +1,305 @@
+package com.code2play.grid.game;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * Single pass parser of level files that reads tiles straight into the tile codes
+ * of a level, without splitting the content into strings. Every error is reported
+ * as a LevelFormatException with the line and column where it is found.
+ * A parser keeps its read buffer between files, so one parser loads any number of
+ * levels without allocating more than the levels themselves. Not thread-safe.
+ * <p>
+ * Lines starting with // are comments, as is anything after // at the end of a line,
+ * and blank lines are skipped. The first line holds the grid details, whose move
+ * thresholds must be ordered as max moves &gt;= min gold &gt;= min silver. The tiles 
+ * follow separated by commas or line breaks.
+ */
+public class LevelParser {
+
+	/** Read buffer of level files, grown to the largest file read **/
+	private byte[] buffer = new byte[256];
+
+	/** Content being parsed, either chars or bytes **/
+	private CharSequence chars;
+	private byte[] bytes;
+	private int length;
+
+	private String source;
+	private int pos;
+	private int line;
+	private int lineStart;
+
+	/** Position of the last number read **/
+	private int tokenPos;
+
+	/**
+	 * Reads and parses a level file named after its level number
+	 * @param file
+	 * @return
+	 * @throws LevelFormatException If the content is malformed
+	 */
+	public LevelData parse(FileHandle file) {
+		String name = file.name();
+		int level = 0;
+		int dot = name.indexOf('.');
+		for (int i = 0; i < (dot < 0 ? name.length() : dot); i++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9' || level > (Integer.MAX_VALUE-9) / 10)
+				throw new IllegalArgumentException("Level file must be named after its level number: " + file.path());
+			level = level*10 + (c - '0');
+		}
+
+		int size = (int) file.length();
+		byte[] content;
+		if (size > 0) {
+			if (buffer.length < size) buffer = new byte[Math.max(size, buffer.length*2)];
+			content = buffer;
+			size = file.readBytes(content, 0, size);
+		}
+		else {
+			// length is not known for some files, such as compressed Android assets
+			content = file.readBytes();
+			size = content.length;
+		}
+		return parse(file.path(), level, content, size);
+	}
+
+	/**
+	 * Parses the content of a level file, read as ASCII
+	 * @param source Name of the file in error messages
+	 * @param level Level number
+	 * @param content
+	 * @param length Number of bytes of the content
+	 * @return
+	 * @throws LevelFormatException If the content is malformed
+	 */
+	public LevelData parse(String source, int level, byte[] content, int length) {
+		this.bytes = content;
+		this.chars = null;
+		return parse(source, level, length);
+	}
+
+	/**
+	 * Parses the content of a level file
+	 * @param source Name of the file in error messages
+	 * @param level Level number
+	 * @param content
+	 * @return
+	 * @throws LevelFormatException If the content is malformed
+	 */
+	public LevelData parse(String source, int level, CharSequence content) {
+		this.chars = content;
+		this.bytes = null;
+		return parse(source, level, content.length());
+	}
+
+	private LevelData parse(String source, int level, int length) {
+		this.source = source;
+		this.length = length;
+		pos = 0;
+		line = 1;
+		lineStart = 0;
+		try {
+			return parseLevel(level);
+		}
+		finally {
+			chars = null;
+			bytes = null;
+		}
+	}
+
+	private LevelData parseLevel(int level) {
+		skipLines();
+		if (pos >= length) throw error("Expected grid details");
+
+		// first line is grid details
+		int width = readInt("width");
+		if (width < 1) throw errorAt(tokenPos, "Width must be positive, got " + width);
+		readComma();
+		int height = readInt("height");
+		if (height < 1) throw errorAt(tokenPos, "Height must be positive, got " + height);
+		if ((long) width*height > 0xFFFF) throw errorAt(tokenPos, "Grid of " + width + "x" + height + " is too large");
+		readComma();
+		int movesLeft = readInt("max moves");
+		readComma();
+		int minGoldMovesLeft = readInt("min gold");
+		if (minGoldMovesLeft > movesLeft) 
+			throw errorAt(tokenPos, "Min gold " + minGoldMovesLeft + " is more than max moves " + movesLeft);
+		readComma();
+		int minSilverMovesLeft = readInt("min silver");
+		if (minSilverMovesLeft > minGoldMovesLeft) 
+			throw errorAt(tokenPos, "Min silver " + minSilverMovesLeft + " is more than min gold " + minGoldMovesLeft);
+		readComma();
+		float levelTime = readFloat("max time");
+		readComma();
+		int swapsLeft = readInt("base swaps");
+		int minChainSize = Grid.DEFAULT_MIN_CHAIN_SIZE;
+		skipSpaces();
+		if (peek() == ',') {
+			pos++;
+			skipSpaces();
+			if (!isLineEnd()) {
+				minChainSize = readInt("min chain");
+				if (minChainSize < 2) throw errorAt(tokenPos, "Min chain must be at least 2, got " + minChainSize);
+			}
+		}
+		readLineEnd();
+
+		// then grid tile info
+		byte[] tiles = new byte[width*height];
+		skipLines();
+		for (int i = 0; i < tiles.length; i++) {
+			if (i > 0) {
+				skipSpaces();
+				if (peek() == ',') {
+					pos++;
+					skipSpaces();
+				}
+				else if (!isLineEnd())
+					throw error("Expected ',' after tile " + i);
+				skipLines();
+			}
+			tiles[i] = (byte) readTile(i, tiles.length);
+		}
+		skipSpaces();
+		if (peek() == ',') throw error("Expected " + tiles.length + " tiles, got more");
+		readLineEnd();
+		skipLines();
+		if (pos < length) throw error("Unexpected content after the tiles");
+
+		return new LevelData(level, width, height, movesLeft, minGoldMovesLeft, minSilverMovesLeft,
+				levelTime, swapsLeft, minChainSize, tiles, false);
+	}
+
+	/**
+	 * Returns the tile code of the tile at the current position
+	 */
+	private int readTile(int index, int numTiles) {
+		int c = peek();
+		switch (c) {
+		case 'x': pos++; return Color.NONE.ordinal();
+		case 'b': pos++; return Color.BLUE.ordinal();
+		case 'g': pos++; return Color.GREEN.ordinal();
+		case 'r': pos++; return Color.RED.ordinal();
+		case 'y': pos++; return Color.YELLOW.ordinal();
+		case '^': pos++; return LevelData.BLOCKED;
+		case '?': pos++; return LevelData.RANDOM;
+		case -1:
+			throw error("Expected " + numTiles + " tiles, got " + index);
+		default:
+			throw error("Unknown tile '" + (char) c + "', expected one of x,^,b,g,r,y,?");
+		}
+	}
+
+	private int readInt(String name) {
+		skipSpaces();
+		tokenPos = pos;
+		boolean negative = peek() == '-';
+		if (negative) pos++;
+		long value = 0;
+		int digits = 0;
+		for (int c = peek(); c >= '0' && c <= '9'; pos++, c = peek()) {
+			value = value*10 + (c - '0');
+			if (value > Integer.MAX_VALUE) throw errorAt(tokenPos, "Number out of range for " + name);
+			digits++;
+		}
+		if (digits == 0) throw errorAt(tokenPos, "Expected " + name);
+		return (int) (negative ? -value : value);
+	}
+
+	private float readFloat(String name) {
+		int intPart = readInt(name);
+		if (peek() != '.') return intPart;
+		pos++;
+		double fraction = 0;
+		double scale = 1;
+		for (int c = peek(); c >= '0' && c <= '9'; pos++, c = peek()) {
+			fraction = fraction*10 + (c - '0');
+			scale *= 10;
+		}
+		if (scale == 1) throw error("Expected digits after '.' of " + name);
+		boolean negative = charAt(tokenPos) == '-';
+		return (float) (negative ? intPart - fraction/scale : intPart + fraction/scale);
+	}
+
+	private void readComma() {
+		skipSpaces();
+		if (peek() != ',') throw error("Expected ','");
+		pos++;
+	}
+
+	/**
+	 * Reads the end of the current line, and a comment before it
+	 */
+	private void readLineEnd() {
+		skipSpaces();
+		if (!isLineEnd()) throw error("Expected end of line");
+		skipComment();
+		readNewLine();
+	}
+
+	/**
+	 * Skips blank lines, comment lines and the spaces before the next token
+	 */
+	private void skipLines() {
+		while (true) {
+			skipSpaces();
+			if (!isLineEnd() || pos >= length) return;
+			skipComment();
+			readNewLine();
+		}
+	}
+
+	private void skipSpaces() {
+		for (int c = peek(); c == ' ' || c == '\t'; c = peek())
+			pos++;
+	}
+
+	private void skipComment() {
+		if (peek() == '/')
+			while (pos < length && peek() != '\n' && peek() != '\r')
+				pos++;
+	}
+
+	private void readNewLine() {
+		int c = peek();
+		if (c == '\r') {
+			pos++;
+			if (peek() == '\n') pos++;
+		}
+		else if (c == '\n')
+			pos++;
+		else return;
+		line++;
+		lineStart = pos;
+	}
+
+	/**
+	 * Returns whether or not the current position is at the end of the line,
+	 * or at a comment that ends it
+	 */
+	private boolean isLineEnd() {
+		int c = peek();
+		return c == -1 || c == '\n' || c == '\r' || (c == '/' && pos+1 < length && charAt(pos+1) == '/');
+	}
+
+	private int peek() {
+		return pos < length ? charAt(pos) : -1;
+	}
+
+	private int charAt(int index) {
+		return bytes != null ? bytes[index] & 0xFF : chars.charAt(index);
+	}
+
+	private LevelFormatException error(String message) {
+		return errorAt(pos, message);
+	}
+
+	/**
+	 * Returns an error at a position of the current line
+	 */
+	private LevelFormatException errorAt(int position, String message) {
+		return new LevelFormatException(source, line, position - lineStart + 1, message);
+	}
+}
@@ -0,0 +1,177 @@
+package com.code2play.grid.game;
+
+import com.code2play.grid.game.GridBox.Color;
+
+/**
+ * Immutable starting state of a level, as read from a level file.
+ * Grid box colors are kept as color ordinals in a primitive array,
+ * so that a grid can be restored to the start of its level without
+ * creating any gridbox objects.
+ */
+public class LevelTemplate {
+
+	/** Cached color values to avoid allocating a new array on every lookup **/
+	private static final Color[] COLORS = Color.values();
+
+	private final int level;
+	private final int width;
+	private final int height;
+
+	/** Number of moves allowed **/
+	private final int movesLeft;
+
+	/** Minimum moves left to receive Gold and Silver rewards **/
+	private final int minGoldMovesLeft;
+	private final int minSilverMovesLeft;
+
+	/** Time allowed for this level **/
+	private final float levelTime;
+
+	/** Number of swaps allowed **/
+	private final int swapsLeft;
+
+	/** Color ordinal of every grid box, indexed by id-1 **/
+	private final byte[] colors;
+
+	/** Whether or not every grid box is blocked, null if none is **/
+	private final boolean[] blocked;
+	private final int numBlocked;
+
+	/** Number of same-color boxes a group needs to be cleared **/
+	private final int minChainSize;
+
+	/** Number of colored grid boxes **/
+	private final int numSpawned;
+
+	/**
+	 * Constructs a template from the level details and the colors of
+	 * all width*height grid boxes. The color array is copied.
+	 */
+	public LevelTemplate(int level, int width, int height, int movesLeft,
+			int minGoldMovesLeft, int minSilverMovesLeft, float levelTime, int swapsLeft,
+			byte[] colors) {
+		this(level, width, height, movesLeft, minGoldMovesLeft, minSilverMovesLeft, levelTime, 
+				swapsLeft, colors, null);
+	}
+
+	/**
+	 * Constructs a template from the level details, the colors of all width*height 
+	 * grid boxes and the grid boxes that are blocked. Both arrays are copied.
+	 * @param blocked Null if no grid box is blocked. Blocked grid boxes must have no color.
+	 */
+	public LevelTemplate(int level, int width, int height, int movesLeft,
+			int minGoldMovesLeft, int minSilverMovesLeft, float levelTime, int swapsLeft,
+			byte[] colors, boolean[] blocked) {
+		this(level, width, height, movesLeft, minGoldMovesLeft, minSilverMovesLeft, levelTime, 
+				swapsLeft, colors, blocked, Grid.DEFAULT_MIN_CHAIN_SIZE);
+	}
+
+	/**
+	 * Constructs a template from the level details, the colors of all width*height 
+	 * grid boxes, the grid boxes that are blocked and the size of the groups that are cleared
+	 * @param blocked Null if no grid box is blocked. Blocked grid boxes must have no color.
+	 * @param minChainSize Number of same-color boxes a group needs to be cleared, at least 2
+	 */
+	public LevelTemplate(int level, int width, int height, int movesLeft,
+			int minGoldMovesLeft, int minSilverMovesLeft, float levelTime, int swapsLeft,
+			byte[] colors, boolean[] blocked, int minChainSize) {
+		if (colors.length != width*height)
+			throw new IllegalArgumentException("Expected " + width*height +
+					" grid boxes, got " + colors.length);
+		if (blocked != null && blocked.length != colors.length)
+			throw new IllegalArgumentException("Expected " + colors.length +
+					" blocked flags, got " + blocked.length);
+		if (minChainSize < 2)
+			throw new IllegalArgumentException("Minimum chain size must be at least 2, got " + minChainSize);
+		this.level = level;
+		this.width = width;
+		this.height = height;
+		this.movesLeft = movesLeft;
+		this.minGoldMovesLeft = minGoldMovesLeft;
+		this.minSilverMovesLeft = minSilverMovesLeft;
+		this.levelTime = levelTime;
+		this.swapsLeft = swapsLeft;
+		this.minChainSize = minChainSize;
+		this.colors = colors.clone();
+
+		int spawned = 0;
+		for (int i = 0; i < colors.length; i++)
+			if (colors[i] != Color.NONE.ordinal()) spawned++;
+		numSpawned = spawned;
+
+		int numBlocked = 0;
+		if (blocked != null) {
+			for (int i = 0; i < blocked.length; i++) {
+				if (!blocked[i]) continue;
+				if (colors[i] != Color.NONE.ordinal())
+					throw new IllegalArgumentException("Blocked grid box " + (i+1) + " has a color");
+				numBlocked++;
+			}
+		}
+		this.blocked = numBlocked > 0 ? blocked.clone() : null;
+		this.numBlocked = numBlocked;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getMovesLeft() {
+		return movesLeft;
+	}
+
+	public int getMinGoldMovesLeft() {
+		return minGoldMovesLeft;
+	}
+
+	public int getMinSilverMovesLeft() {
+		return minSilverMovesLeft;
+	}
+
+	public float getLevelTime() {
+		return levelTime;
+	}
+
+	public int getSwapsLeft() {
+		return swapsLeft;
+	}
+
+	public int getMinChainSize() {
+		return minChainSize;
+	}
+
+	public int getNumSpawned() {
+		return numSpawned;
+	}
+
+	/**
+	 * Returns the starting color of the grid box at the index specified
+	 * @param index Zero-based index (id-1) of the grid box
+	 * @return
+	 */
+	public Color getColor(int index) {
+		return COLORS[colors[index]];
+	}
+
+	/**
+	 * Returns whether or not the grid box at the index specified is blocked. 
+	 * Boxes can never move into, spawn on or be swapped with a blocked grid box.
+	 * @param index Zero-based index (id-1) of the grid box
+	 * @return
+	 */
+	public boolean isBlocked(int index) {
+		return blocked != null && blocked[index];
+	}
+
+	public int getNumBlocked() {
+		return numBlocked;
+	}
+}
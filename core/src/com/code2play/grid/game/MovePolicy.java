@@ -0,0 +1,16 @@
+package com.code2play.grid.game;
+
+/**
+ * Chooses the next swipe of a simulated game. A policy is shared by every 
+ * thread of a simulation, so it must not keep any state of its own.
+ */
+public interface MovePolicy {
+
+	/**
+	 * Returns the direction to swipe the grid specified in
+	 * @param grid Grid of the game being played. It must not be changed.
+	 * @param random Random number generator of the game being played
+	 * @return
+	 */
+	Swipe nextMove(Grid grid, GridRandom random);
+}
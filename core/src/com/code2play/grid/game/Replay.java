@@ -0,0 +1,382 @@
+package com.code2play.grid.game;
+
+import java.io.File;
+
+import com.badlogic.gdx.files.FileHandle;
+
+/**
+ * Compact binary log of a game session, as recorded by a ReplayRecorder, that can
+ * be played back through Grid.update with no rendering. The header holds the level,
+ * the game mode, the counters, the color or block of every grid box and the random state at
+ * the start of the session. Every input after that is one varint holding the millisec
+ * since the previous input and the input type, followed by the two box ids of a swap,
+ * so a move takes two or three bytes.
+ */
+public class Replay {
+
+	/** 
+	 * First bytes of every replay, the last one being the format version. Version 1 
+	 * recorded every step of a cascade as a swipe, before moves were resolved in one update.
+	 */
+	private static final byte[] MAGIC = { 'G', 'R', 'P', 2 };
+
+	/** Grid box value of a blocked grid box in the header **/
+	private static final int BLOCKED = 0xF;
+
+	/** Input types, swipes being their direction ordinal **/
+	static final int SWAP = 4;
+	static final int UNDO = 5;
+	static final int RESTART = 6;
+
+	/** Move count update that does not directly follow another input **/
+	static final int COUNT = 7;
+
+	/** Flag of an input after which the move count was updated **/
+	static final int COUNTED = 8;
+
+	/** Number of low bits of an input that hold its type and flags **/
+	static final int TYPE_BITS = 4;
+
+	private static final int TYPE_MASK = 7;
+	private static final Swipe[] SWIPES = Swipe.values();
+	private static final GameMode[] MODES = GameMode.values();
+
+	private final GameMode mode;
+	private final int undoCount;
+	private final long seed;
+	private final LevelTemplate start;
+
+	/** Encoded inputs **/
+	private final byte[] inputs;
+	private final int numInputs;
+	private final long duration;
+
+	Replay(GameMode mode, int undoCount, long seed, LevelTemplate start, byte[] inputs, int length) {
+		this.mode = mode;
+		this.undoCount = undoCount;
+		this.seed = seed;
+		this.start = start;
+		this.inputs = new byte[length];
+		System.arraycopy(inputs, 0, this.inputs, 0, length);
+
+		// validate the inputs once, so that playback does not have to
+		int count = 0;
+		long time = 0;
+		int[] pos = new int[1];
+		while (pos[0] < length) {
+			long value = readVarint(this.inputs, pos);
+			time += value >>> TYPE_BITS;
+			if ((value & TYPE_MASK) == SWAP) {
+				readVarint(this.inputs, pos);
+				readVarint(this.inputs, pos);
+			}
+			count++;
+		}
+		numInputs = count;
+		duration = time;
+	}
+
+	public int getLevel() {
+		return start.getLevel();
+	}
+
+	public GameMode getGameMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns the state of the random number generator at the start of the session
+	 * @return
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the state of the grid at the start of the session
+	 * @return
+	 */
+	public LevelTemplate getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the number of swipes, swaps, undos and restarts recorded
+	 * @return
+	 */
+	public int getNumInputs() {
+		return numInputs;
+	}
+
+	/**
+	 * Returns the time from the start of the session to the last input in millisec
+	 * @return
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Constructs a grid in the state at the start of the session, 
+	 * played by the rules of the mode the session was played in
+	 * @return
+	 */
+	public Grid createGrid() {
+		return new Grid(mode, start);
+	}
+
+	/**
+	 * Resets the grid specified to the start of the session and plays every
+	 * input recorded, as fast as possible
+	 * @param grid Grid created by createGrid
+	 * @return Number of inputs played
+	 */
+	public int play(Grid grid) {
+		grid.restoreDefaultState();
+		grid.setUndoCount(undoCount);
+		grid.getRandom().setState(seed);
+
+		byte[] inputs = this.inputs;
+		int[] pos = new int[1];
+		while (pos[0] < inputs.length) {
+			int value = (int) readVarint(inputs, pos);
+			int type = value & TYPE_MASK;
+			switch (type) {
+			case SWAP:
+				int first = (int) readVarint(inputs, pos);
+				int second = (int) readVarint(inputs, pos);
+				grid.update(0, first, second);
+				break;
+			case UNDO:
+				grid.undoMove();
+				break;
+			case RESTART:
+				grid.restoreDefaultState();
+				break;
+			case COUNT:
+				break;
+			default:
+				grid.update(0, SWIPES[type]);
+			}
+			if (type == COUNT || (value & COUNTED) != 0) grid.updateMoveCount();
+		}
+		return numInputs;
+	}
+
+	/**
+	 * Returns the replay encoded as bytes
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		int size = start.getWidth()*start.getHeight();
+		ByteWriter out = new ByteWriter(MAGIC.length + 40 + (size+1)/2 + inputs.length);
+		out.write(MAGIC, MAGIC.length);
+		out.writeVarint(start.getLevel());
+		out.writeVarint(start.getWidth());
+		out.writeVarint(start.getHeight());
+		out.writeVarint(mode.ordinal());
+		out.writeVarint(undoCount);
+		out.writeVarint(zigzag(start.getMovesLeft()));
+		out.writeVarint(zigzag(start.getMinGoldMovesLeft()));
+		out.writeVarint(zigzag(start.getMinSilverMovesLeft()));
+		out.writeVarint(zigzag(start.getSwapsLeft()));
+		out.writeVarint(start.getMinChainSize());
+		out.writeLong(Float.floatToIntBits(start.getLevelTime()), 4);
+		out.writeLong(seed, 8);
+
+		// two grid boxes per byte
+		for (int i = 0; i < size; i += 2) {
+			int low = encodeBox(i);
+			int high = i+1 < size ? encodeBox(i+1) : 0;
+			out.writeByte(low | high << 4);
+		}
+		out.write(inputs, inputs.length);
+		return out.toByteArray();
+	}
+
+	private int encodeBox(int index) {
+		return start.isBlocked(index) ? BLOCKED : start.getColor(index).ordinal();
+	}
+
+	/**
+	 * Decodes a replay from the bytes returned by toByteArray
+	 * @param bytes
+	 * @return
+	 * @throws IllegalArgumentException If the bytes are not a replay
+	 */
+	public static Replay fromByteArray(byte[] bytes) {
+		for (int i = 0; i < MAGIC.length; i++)
+			if (bytes.length <= i || bytes[i] != MAGIC[i])
+				throw new IllegalArgumentException("Not a replay of version " + MAGIC[MAGIC.length-1]);
+
+		int[] pos = { MAGIC.length };
+		int level = (int) readVarint(bytes, pos);
+		int width = (int) readVarint(bytes, pos);
+		int height = (int) readVarint(bytes, pos);
+		int modeOrdinal = (int) readVarint(bytes, pos);
+		if (modeOrdinal >= MODES.length)
+			throw new IllegalArgumentException("Unknown game mode " + modeOrdinal);
+		int undoCount = (int) readVarint(bytes, pos);
+		int movesLeft = unzigzag(readVarint(bytes, pos));
+		int minGold = unzigzag(readVarint(bytes, pos));
+		int minSilver = unzigzag(readVarint(bytes, pos));
+		int swapsLeft = unzigzag(readVarint(bytes, pos));
+		int minChainSize = (int) readVarint(bytes, pos);
+		float levelTime = Float.intBitsToFloat((int) readLong(bytes, pos, 4));
+		long seed = readLong(bytes, pos, 8);
+
+		byte[] colors = new byte[width*height];
+		boolean[] blocked = new boolean[colors.length];
+		for (int i = 0; i < colors.length; i += 2) {
+			int packed = readByte(bytes, pos);
+			colors[i] = (byte) (packed & 0xF);
+			if (i+1 < colors.length) colors[i+1] = (byte) (packed >>> 4);
+		}
+		for (int i = 0; i < colors.length; i++) {
+			if (colors[i] == BLOCKED) {
+				colors[i] = 0;
+				blocked[i] = true;
+			}
+			else if (colors[i] >= GridBox.Color.values().length)
+				throw new IllegalArgumentException("Unknown color " + colors[i]);
+		}
+
+		LevelTemplate start = new LevelTemplate(level, width, height, movesLeft,
+				minGold, minSilver, levelTime, swapsLeft, colors, blocked, minChainSize);
+		byte[] inputs = new byte[bytes.length - pos[0]];
+		System.arraycopy(bytes, pos[0], inputs, 0, inputs.length);
+		return new Replay(MODES[modeOrdinal], undoCount, seed, start, inputs, inputs.length);
+	}
+
+	public void write(FileHandle file) {
+		file.writeBytes(toByteArray(), false);
+	}
+
+	public static Replay load(FileHandle file) {
+		return fromByteArray(file.readBytes());
+	}
+
+	/**
+	 * Reads an unsigned varint at the position specified, and moves the position past it
+	 */
+	static long readVarint(byte[] bytes, int[] pos) {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift > 63) throw new IllegalArgumentException("Varint too long at " + pos[0]);
+			b = readByte(bytes, pos);
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static int readByte(byte[] bytes, int[] pos) {
+		if (pos[0] >= bytes.length) throw new IllegalArgumentException("Replay is truncated");
+		return bytes[pos[0]++] & 0xFF;
+	}
+
+	private static long readLong(byte[] bytes, int[] pos, int numBytes) {
+		long value = 0;
+		for (int i = 0; i < numBytes; i++)
+			value = value << 8 | readByte(bytes, pos);
+		return value;
+	}
+
+	private static long zigzag(int value) {
+		return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+	}
+
+	private static int unzigzag(long value) {
+		return (int) (value >>> 1) ^ -(int) (value & 1);
+	}
+
+	/**
+	 * Growable byte array that varints and fixed size values are written to
+	 */
+	static class ByteWriter {
+		private byte[] bytes;
+		private int size;
+
+		ByteWriter(int capacity) {
+			bytes = new byte[Math.max(capacity, 16)];
+		}
+
+		int size() {
+			return size;
+		}
+
+		byte[] getBytes() {
+			return bytes;
+		}
+
+		void writeByte(int b) {
+			if (size == bytes.length) {
+				byte[] grown = new byte[bytes.length*2];
+				System.arraycopy(bytes, 0, grown, 0, size);
+				bytes = grown;
+			}
+			bytes[size++] = (byte) b;
+		}
+
+		/**
+		 * Sets bits of the byte at the index specified that was already written
+		 */
+		void orByte(int index, int bits) {
+			bytes[index] |= bits;
+		}
+
+		void write(byte[] b, int length) {
+			for (int i = 0; i < length; i++)
+				writeByte(b[i]);
+		}
+
+		void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				writeByte((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+		void writeLong(long value, int numBytes) {
+			for (int i = numBytes-1; i >= 0; i--)
+				writeByte((int) (value >>> (i*8)));
+		}
+
+		byte[] toByteArray() {
+			byte[] copy = new byte[size];
+			System.arraycopy(bytes, 0, copy, 0, size);
+			return copy;
+		}
+	}
+
+	/**
+	 * Plays a replay file as fast as possible and prints the playback speed
+	 * @param args Replay file, then optionally the number of times to play it
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: Replay <file> [repeats]");
+			System.exit(2);
+		}
+		Replay replay = load(new FileHandle(new File(args[0])));
+		int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		Grid grid = replay.createGrid();
+
+		long start = System.nanoTime();
+		long inputs = 0;
+		for (int r = 0; r < repeats; r++)
+			inputs += replay.play(grid);
+		long time = System.nanoTime() - start;
+
+		System.out.println("Level " + replay.getLevel() + " (" + replay.getGameMode() + "), " +
+				replay.getNumInputs() + " inputs over " + replay.getDuration() + " ms, " +
+				replay.toByteArray().length + " bytes");
+		System.out.println("Final state: " + grid.getNumBoxSpawned() + " boxes, " +
+				grid.getMovesLeft() + " moves left, hash " + Long.toHexString(grid.getHash()));
+		System.out.println("Played " + inputs + " inputs in " + time/1000000 + " ms (" +
+				Math.round(inputs*1e9 / Math.max(time, 1)) + " inputs/s)");
+	}
+}
@@ -0,0 +1,97 @@
+package com.code2play.grid.game;
+
+/**
+ * Records every swipe, swap, undo, restart and move count update made to a grid
+ * into a Replay. The state of the grid when recording starts is saved in the replay,
+ * so it should start with the level. Recording costs a few bytes per input and
+ * allocates only when the buffer grows.
+ */
+public class ReplayRecorder {
+
+	private final Grid grid;
+	private final GameMode mode;
+	private final int undoCount;
+	private final long seed;
+	private final LevelTemplate start;
+
+	private final Replay.ByteWriter inputs;
+
+	/** Index of the first byte of the last input, -1 if none **/
+	private int lastInput = -1;
+	private boolean lastCounted;
+	private long lastTime;
+
+	/**
+	 * Saves the current state of the grid specified and starts recording its inputs.
+	 * Any recorder already attached to the grid stops recording.
+	 * @param grid
+	 */
+	public ReplayRecorder(Grid grid) {
+		this.grid = grid;
+		mode = grid.getRules().getGameMode();
+		undoCount = grid.getUndoCount();
+		seed = grid.getRandom().getState();
+
+		start = grid.snapshot();
+
+		inputs = new Replay.ByteWriter(256);
+		lastTime = System.nanoTime();
+		grid.setRecorder(this);
+	}
+
+	/**
+	 * Stops recording. Inputs recorded so far remain in the replay.
+	 */
+	public void stop() {
+		if (grid.getRecorder() == this) grid.setRecorder(null);
+	}
+
+	/**
+	 * Returns the inputs recorded so far as a replay
+	 * @return
+	 */
+	public Replay getReplay() {
+		return new Replay(mode, undoCount, seed, start, inputs.getBytes(), inputs.size());
+	}
+
+	void recordSwipe(Swipe direction) {
+		record(direction.ordinal());
+	}
+
+	void recordSwap(int firstId, int secondId) {
+		record(Replay.SWAP);
+		inputs.writeVarint(firstId);
+		inputs.writeVarint(secondId);
+	}
+
+	void recordUndo() {
+		record(Replay.UNDO);
+	}
+
+	void recordRestart() {
+		record(Replay.RESTART);
+	}
+
+	/**
+	 * Flags the last input as followed by a move count update. Nothing else changes
+	 * the grid in between, so it does not matter whether the update came right
+	 * after the input or just before the next one.
+	 */
+	void recordMoveCount() {
+		if (lastInput == -1 || lastCounted) {
+			record(Replay.COUNT);
+			return;
+		}
+		inputs.orByte(lastInput, Replay.COUNTED);
+		lastCounted = true;
+	}
+
+	private void record(int type) {
+		long now = System.nanoTime();
+		long millis = Math.max((now - lastTime) / 1000000, 0);
+		lastTime = now;
+		lastInput = inputs.size();
+		lastCounted = type == Replay.COUNT;
+		inputs.writeVarint(millis << Replay.TYPE_BITS | type);
+	}
+}
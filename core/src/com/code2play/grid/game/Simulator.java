@@ -0,0 +1,362 @@
+package com.code2play.grid.game;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Headless runner that plays many CLASSIC games with a move policy and no rendering.
+ * Games are spread over a fixed number of threads, each reusing a single grid that is
+ * reset between games, so a game costs no more than its moves. Every game is seeded
+ * from the base seed and its number, so any game can be replayed on its own.
+ */
+public class Simulator {
+
+	/** Default maximum number of moves of a game, after which it counts as survived **/
+	public static final int DEFAULT_MAX_MOVES = 10000;
+
+	/** Number of games a thread claims at a time **/
+	private static final int BATCH_SIZE = 256;
+
+	private static final Swipe[] SWIPES = Swipe.values();
+
+	/** Policy that swipes in a uniformly random direction **/
+	public static final MovePolicy RANDOM_POLICY = new MovePolicy() {
+		@Override
+		public Swipe nextMove(Grid grid, GridRandom random) {
+			return SWIPES[random.nextInt(SWIPES.length)];
+		}
+	};
+
+	/**
+	 * Statistics of a simulation, merged from every thread
+	 */
+	public static class Stats {
+		private final int maxMoves;
+		private long numGames;
+		private long totalMoves;
+		private double totalSquaredMoves;
+		private int minMoves = Integer.MAX_VALUE;
+		private int maxMovesPlayed;
+		private long numSurvived;
+		private long numChangingMoves;
+		private long numCleared;
+		private final long[] moveCounts = new long[SWIPES.length];
+
+		/** Number of games that lasted each number of moves **/
+		private final long[] lengths;
+		private long time;
+
+		Stats(int maxMoves) {
+			this.maxMoves = maxMoves;
+			lengths = new long[maxMoves+1];
+		}
+
+		void addGame(int moves) {
+			numGames++;
+			totalMoves += moves;
+			totalSquaredMoves += (double) moves*moves;
+			minMoves = Math.min(minMoves, moves);
+			maxMovesPlayed = Math.max(maxMovesPlayed, moves);
+			if (moves >= maxMoves) numSurvived++;
+			lengths[moves]++;
+		}
+
+		void merge(Stats other) {
+			numGames += other.numGames;
+			totalMoves += other.totalMoves;
+			totalSquaredMoves += other.totalSquaredMoves;
+			minMoves = Math.min(minMoves, other.minMoves);
+			maxMovesPlayed = Math.max(maxMovesPlayed, other.maxMovesPlayed);
+			numSurvived += other.numSurvived;
+			numChangingMoves += other.numChangingMoves;
+			numCleared += other.numCleared;
+			for (int i = 0; i < moveCounts.length; i++)
+				moveCounts[i] += other.moveCounts[i];
+			for (int i = 0; i < lengths.length; i++)
+				lengths[i] += other.lengths[i];
+		}
+
+		public long getNumGames() {
+			return numGames;
+		}
+
+		/**
+		 * Returns the mean number of moves a game lasted
+		 * @return
+		 */
+		public double getMeanSurvival() {
+			return numGames == 0 ? 0 : (double) totalMoves / numGames;
+		}
+
+		public double getSurvivalStdDev() {
+			if (numGames == 0) return 0;
+			double mean = getMeanSurvival();
+			return Math.sqrt(Math.max(totalSquaredMoves / numGames - mean*mean, 0));
+		}
+
+		public int getMinSurvival() {
+			return numGames == 0 ? 0 : minMoves;
+		}
+
+		public int getMaxSurvival() {
+			return maxMovesPlayed;
+		}
+
+		/**
+		 * Returns the number of moves that the fraction specified of all games lasted at most
+		 * @param fraction Between 0 and 1, eg. 0.5 for the median
+		 * @return
+		 */
+		public int getSurvivalPercentile(double fraction) {
+			long target = (long) Math.ceil(fraction*numGames);
+			long count = 0;
+			for (int moves = 0; moves < lengths.length; moves++) {
+				count += lengths[moves];
+				if (count >= target && count > 0) return moves;
+			}
+			return maxMoves;
+		}
+
+		/**
+		 * Returns the number of games that lasted exactly the number of moves specified
+		 * @param moves
+		 * @return
+		 */
+		public long getNumGamesLasting(int moves) {
+			return lengths[moves];
+		}
+
+		/**
+		 * Returns the number of games still going after the maximum number of moves
+		 * @return
+		 */
+		public long getNumSurvived() {
+			return numSurvived;
+		}
+
+		/**
+		 * Returns how many times the policy chose the direction specified
+		 * @param direction
+		 * @return
+		 */
+		public long getMoveCount(Swipe direction) {
+			return moveCounts[direction.ordinal()];
+		}
+
+		public long getTotalMoves() {
+			return totalMoves;
+		}
+
+		/**
+		 * Returns the number of moves that moved or removed any box
+		 * @return
+		 */
+		public long getNumChangingMoves() {
+			return numChangingMoves;
+		}
+
+		/**
+		 * Returns the number of boxes removed in chained groups over all games
+		 * @return
+		 */
+		public long getNumCleared() {
+			return numCleared;
+		}
+
+		/**
+		 * Returns the time taken in millisec
+		 * @return
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public double getGamesPerSecond() {
+			return time == 0 ? 0 : numGames*1000.0 / time;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(numGames).append(" games in ").append(time).append(" ms (")
+				.append(Math.round(getGamesPerSecond())).append(" games/s)\n");
+			builder.append("survival: mean ").append(String.format("%.2f", getMeanSurvival()))
+				.append(", stddev ").append(String.format("%.2f", getSurvivalStdDev()))
+				.append(", min ").append(getMinSurvival())
+				.append(", median ").append(getSurvivalPercentile(.5))
+				.append(", p90 ").append(getSurvivalPercentile(.9))
+				.append(", max ").append(getMaxSurvival())
+				.append(", survived ").append(numSurvived).append('\n');
+			builder.append("moves:");
+			for (Swipe direction : SWIPES)
+				builder.append(' ').append(direction).append(' ').append(getMoveCount(direction));
+			builder.append(", changing ").append(numChangingMoves).append(" of ").append(totalMoves)
+				.append(", boxes cleared ").append(numCleared);
+			return builder.toString();
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private MovePolicy policy = RANDOM_POLICY;
+	private int maxMoves = DEFAULT_MAX_MOVES;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private long seed;
+
+	/**
+	 * Constructs a simulator of CLASSIC games on grids of the dimension specified
+	 * @param width
+	 * @param height
+	 */
+	public Simulator(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	public void setPolicy(MovePolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets the maximum number of moves of a game, after which it counts as survived
+	 * @param moves
+	 */
+	public void setMaxMoves(int moves) {
+		maxMoves = moves;
+	}
+
+	/**
+	 * Sets the number of threads that play games at the same time.
+	 * Defaults to the number of available processors.
+	 * @param threads
+	 */
+	public void setParallelism(int threads) {
+		parallelism = Math.max(threads, 1);
+	}
+
+	/**
+	 * Sets the seed that the seed of every game is derived from
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the seed of the game number specified
+	 * @param gameNum
+	 * @return
+	 */
+	public long getGameSeed(long gameNum) {
+		return mix(seed + gameNum);
+	}
+
+	/**
+	 * Plays the number of games specified and returns their statistics
+	 * @param numGames
+	 * @return
+	 */
+	public Stats run(final long numGames) {
+		long start = System.currentTimeMillis();
+		final AtomicLong nextGame = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<Stats>> results = new ArrayList<Future<Stats>>(parallelism);
+		try {
+			for (int t = 0; t < parallelism; t++) {
+				results.add(executor.submit(new Callable<Stats>() {
+					@Override
+					public Stats call() {
+						return playGames(nextGame, numGames);
+					}
+				}));
+			}
+
+			Stats stats = new Stats(maxMoves);
+			for (Future<Stats> result : results)
+				stats.merge(result.get());
+			stats.time = System.currentTimeMillis() - start;
+			return stats;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Simulation interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Simulation failed", e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Plays batches of games on one thread until all games are claimed
+	 */
+	private Stats playGames(AtomicLong nextGame, long numGames) {
+		Stats stats = new Stats(maxMoves);
+		Grid grid = new Grid(GameMode.CLASSIC, new LevelTemplate(0, width, height, 0, 0, 0, -1, 0,
+				new byte[width*height]));
+		GridRandom random = new GridRandom();
+		long first;
+		while ((first = nextGame.getAndAdd(BATCH_SIZE)) < numGames) {
+			long last = Math.min(first + BATCH_SIZE, numGames);
+			for (long g = first; g < last; g++)
+				stats.addGame(playGame(grid, random, getGameSeed(g), stats));
+		}
+		return stats;
+	}
+
+	/**
+	 * Plays one game from an empty grid until the grid is full and no groups are left
+	 * @return Number of moves the game lasted
+	 */
+	int playGame(Grid grid, GridRandom random, long gameSeed, Stats stats) {
+		grid.restoreDefaultState();
+		grid.setSeed(gameSeed);
+		random.setSeed(~gameSeed);
+
+		int moves = 0;
+		while (moves < maxMoves) {
+			Swipe direction = policy.nextMove(grid, random);
+			stats.moveCounts[direction.ordinal()]++;
+			if (grid.update(0, direction)) stats.numChangingMoves++;
+			stats.numCleared += countRemoved(grid.getEvents());
+			moves++;
+			if (grid.getNumBoxSpawned() >= grid.getSize() - grid.getNumBlocked()) break;
+		}
+		return moves;
+	}
+
+	private static int countRemoved(GridEvents events) {
+		int count = 0;
+		for (int i = 0; i < events.size(); i++)
+			if (events.getType(i) == GridEvents.REMOVE) count++;
+		return count;
+	}
+
+	private static long mix(long z) {
+		z = (z + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Runs a simulation with the random policy and prints its statistics
+	 * @param args Number of games, then optionally width, height and seed
+	 */
+	public static void main(String[] args) {
+		long numGames = args.length > 0 ? Long.parseLong(args[0]) : 100000;
+		int width = args.length > 2 ? Integer.parseInt(args[1]) : 4;
+		int height = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		Simulator simulator = new Simulator(width, height);
+		if (args.length > 3) simulator.setSeed(Long.parseLong(args[3]));
+		System.out.println(simulator.run(numGames));
+	}
+}
@@ -0,0 +1,564 @@
+package com.code2play.grid.game;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.badlogic.gdx.files.FileHandle;
+
+/**
+ * Headless solver for CHALLENGE levels. Finds the minimum number of moves
+ * (swipes and swaps) that clears every colored box from a grid, using iterative
+ * deepening depth-first search with a transposition table of states already
+ * known to fail at a given remaining depth. The first moves of every iteration are
+ * split into fork-join tasks, so that all cores share the search through work
+ * stealing and a lock-free transposition table.
+ * A swipe counts as one move, including the chained groups it keeps clearing.
+ * A swap counts as one move and uses up one of the swaps left.
+ * The grid passed in is never changed: every state is played out on a working copy.
+ */
+public class Solver {
+
+	/** Default time limit of a search **/
+	public static final long DEFAULT_TIME_LIMIT = 10000L;
+
+	/** Default memory limit of the transposition table, in bytes **/
+	public static final long DEFAULT_MEMORY_LIMIT = 64L*1024*1024;
+
+	/** Number of searched states between two checks of the time limit **/
+	private static final int TIME_CHECK_INTERVAL = 4096;
+
+	/** Number of first moves that are split into separate tasks in a parallel search **/
+	private static final int SPLIT_DEPTH = 2;
+
+	/** Key mixed into the hash of states with chained groups waiting to be removed **/
+	private static final long GROUPS_KEY = 0x5DEECE66DL * 0x9E3779B97F4A7C15L;
+
+	private static final Swipe[] SWIPES = Swipe.values();
+	private static final int NUM_COLORS = GridBox.Color.values().length;
+
+	/**
+	 * One move of a solution, either a swipe or a swap of two gridbox IDs
+	 */
+	public static class Move {
+		private final Swipe direction;
+		private final int firstId;
+		private final int secondId;
+
+		Move(Swipe direction) {
+			this.direction = direction;
+			firstId = -1;
+			secondId = -1;
+		}
+
+		Move(int firstId, int secondId) {
+			direction = null;
+			this.firstId = firstId;
+			this.secondId = secondId;
+		}
+
+		public boolean isSwap() {
+			return direction == null;
+		}
+
+		/**
+		 * Returns the swipe direction, or null for a swap
+		 * @return
+		 */
+		public Swipe getDirection() {
+			return direction;
+		}
+
+		public int getFirstId() {
+			return firstId;
+		}
+
+		public int getSecondId() {
+			return secondId;
+		}
+
+		@Override
+		public String toString() {
+			return isSwap() ? "SWAP " + firstId + "<->" + secondId : direction.toString();
+		}
+	}
+
+	/**
+	 * Outcome of a search
+	 */
+	public static class Result {
+		private final List<Move> path;
+		private final boolean timedOut;
+		private final int depthSearched;
+		private final long numStates;
+		private final long time;
+
+		Result(List<Move> path, boolean timedOut, int depthSearched, long numStates, long time) {
+			this.path = path;
+			this.timedOut = timedOut;
+			this.depthSearched = depthSearched;
+			this.numStates = numStates;
+			this.time = time;
+		}
+
+		public boolean isSolved() {
+			return path != null;
+		}
+
+		/**
+		 * Returns the moves of a shortest solution in order, or null if none was found
+		 * @return
+		 */
+		public List<Move> getPath() {
+			return path;
+		}
+
+		/**
+		 * Returns the minimum number of moves, or -1 if no solution was found
+		 * @return
+		 */
+		public int getNumMoves() {
+			return path == null ? -1 : path.size();
+		}
+
+		/**
+		 * Returns whether or not the search was stopped by the time limit
+		 * before finding a solution
+		 * @return
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * Returns the deepest number of moves fully searched
+		 * @return
+		 */
+		public int getDepthSearched() {
+			return depthSearched;
+		}
+
+		public long getNumStates() {
+			return numStates;
+		}
+
+		/**
+		 * Returns the time taken in millisec
+		 * @return
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			if (path != null) return path.size() + " moves " + path;
+			return (timedOut ? "timed out" : "no solution") + " after " + depthSearched + " moves";
+		}
+	}
+
+	private final Grid grid;
+	private long timeLimit = DEFAULT_TIME_LIMIT;
+	private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+	private int maxDepth;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/** Starting state of the search, which working grids are created from **/
+	private LevelTemplate rootState;
+	private byte[] rootBoard;
+	private boolean rootHasGroups;
+	private int rootSwapsLeft;
+
+	/** Transposition table shared by every thread of the search **/
+	private TranspositionTable table;
+
+	/** Searches owned by the threads of a parallel search, one each **/
+	private ThreadLocal<Search> searches;
+
+	private AtomicLong numStates;
+	private AtomicReference<List<Move>> solution;
+	private long deadline;
+	private volatile boolean timedOut;
+
+	/**
+	 * Constructs a solver for the current state of the grid specified.
+	 * Moves are searched up to the number of moves left in the grid.
+	 * @param grid
+	 */
+	public Solver(Grid grid) {
+		this.grid = grid;
+		maxDepth = grid.getMovesLeft();
+	}
+
+	/**
+	 * Sets the time limit of a search in millisec
+	 * @param millis
+	 */
+	public void setTimeLimit(long millis) {
+		timeLimit = millis;
+	}
+
+	/**
+	 * Sets the maximum memory used by the transposition table in bytes
+	 * @param bytes
+	 */
+	public void setMemoryLimit(long bytes) {
+		memoryLimit = bytes;
+	}
+
+	/**
+	 * Sets the maximum number of moves searched
+	 * @param depth
+	 */
+	public void setMaxDepth(int depth) {
+		maxDepth = depth;
+	}
+
+	/**
+	 * Sets the number of threads that search at the same time. 
+	 * Defaults to the number of available processors. 1 searches on the calling thread.
+	 * @param threads
+	 */
+	public void setParallelism(int threads) {
+		parallelism = Math.max(threads, 1);
+	}
+
+	/**
+	 * Searches for a shortest solution with 0, 1, 2... moves until one is found,
+	 * the maximum depth is reached or time runs out
+	 * @return
+	 */
+	public Result solve() {
+		long start = System.currentTimeMillis();
+		deadline = start + timeLimit;
+		init();
+
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		int depth = 0;
+		if (grid.getNumBoxSpawned() == 0) solution.set(new ArrayList<Move>());
+		try {
+			for (int limit = 1; limit <= maxDepth && solution.get() == null && !timedOut; limit++) {
+				if (pool == null) 
+					searches.get().searchFromRoot(limit);
+				else 
+					pool.invoke(new SplitTask(rootBoard, rootHasGroups, rootSwapsLeft, new int[0], limit));
+				if (!timedOut && solution.get() == null) depth = limit;
+			}
+		}
+		finally {
+			if (pool != null) pool.shutdown();
+		}
+
+		List<Move> path = solution.get();
+		Result result = new Result(path, timedOut && path == null, depth,
+				numStates.get(), System.currentTimeMillis() - start);
+		table = null;
+		searches = null;
+		rootState = null;
+		return result;
+	}
+
+	/**
+	 * Allocates the shared state of a search and saves the starting state
+	 */
+	private void init() {
+		rootState = grid.snapshot();
+		rootBoard = new byte[grid.getSize()];
+		grid.saveBoard(rootBoard, 0);
+		rootHasGroups = grid.getNumColorGroups() > 0;
+		rootSwapsLeft = Math.max(grid.getNumSwapsLeft(), 0);
+
+		table = new TranspositionTable(memoryLimit);
+		searches = new ThreadLocal<Search>() {
+			@Override
+			protected Search initialValue() {
+				return new Search();
+			}
+		};
+		numStates = new AtomicLong();
+		solution = new AtomicReference<List<Move>>();
+		timedOut = false;
+	}
+
+	/**
+	 * Task of a parallel search. The first SPLIT_DEPTH moves are split into one task 
+	 * per move, so that idle threads can steal them. Deeper moves are searched on 
+	 * the thread's own working grid.
+	 */
+	private class SplitTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] board;
+		private final boolean hasGroups;
+		private final int swapsLeft;
+		private final int[] path;
+		private final int limit;
+
+		SplitTask(byte[] board, boolean hasGroups, int swapsLeft, int[] path, int limit) {
+			this.board = board;
+			this.hasGroups = hasGroups;
+			this.swapsLeft = swapsLeft;
+			this.path = path;
+			this.limit = limit;
+		}
+
+		@Override
+		protected void compute() {
+			if (solution.get() != null || timedOut) return;
+			Search search = searches.get();
+			int depth = path.length;
+			search.load(board, hasGroups, swapsLeft, path);
+			if (depth >= SPLIT_DEPTH || limit - depth <= 2) {
+				search.search(depth, limit);
+				search.flush();
+				return;
+			}
+
+			// the search of this thread may be reused by stolen tasks while joining, 
+			// so the children carry their own copy of the state
+			List<SplitTask> tasks = search.split(depth, limit);
+			if (tasks != null) invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Depth-first search on a working copy of the grid. Every thread has its own, 
+	 * and only the transposition table is shared.
+	 */
+	private class Search {
+
+		/** Working copy of the grid that every move is played on **/
+		private final Grid work;
+		private final int numBoxes;
+
+		/** Board of every depth of the current search path, one after another **/
+		private final byte[] boards;
+		private final boolean[] hasGroups;
+		private final int[] swapsLeft;
+
+		/** Move taken at every depth of the current search path, encoded by encodeSwap **/
+		private final int[] moves;
+
+		private final int[] colorCounts;
+		private final int minChainSize;
+		private long numSearched;
+
+		Search() {
+			numBoxes = grid.getSize();
+			work = new Grid(grid.getRules(), rootState);
+			boards = new byte[(maxDepth+1)*numBoxes];
+			hasGroups = new boolean[maxDepth+1];
+			swapsLeft = new int[maxDepth+1];
+			moves = new int[maxDepth+1];
+			colorCounts = new int[NUM_COLORS];
+			minChainSize = work.getMinChainSize();
+		}
+
+		void searchFromRoot(int limit) {
+			load(rootBoard, rootHasGroups, rootSwapsLeft, new int[0]);
+			search(0, limit);
+			flush();
+		}
+
+		/**
+		 * Sets the state at the depth of the path length, and the moves that led to it
+		 */
+		void load(byte[] board, boolean groups, int swaps, int[] path) {
+			int depth = path.length;
+			System.arraycopy(board, 0, boards, depth*numBoxes, numBoxes);
+			hasGroups[depth] = groups;
+			swapsLeft[depth] = swaps;
+			System.arraycopy(path, 0, moves, 0, depth);
+		}
+
+		/**
+		 * Searches all states reachable from the one saved at the depth specified
+		 * within limit moves in total, and publishes the first solution found
+		 * @return True if the board is cleared, with the moves taken saved in moves
+		 */
+		boolean search(int depth, int limit) {
+			if (++numSearched % TIME_CHECK_INTERVAL == 0 && System.currentTimeMillis() > deadline)
+				timedOut = true;
+			if (timedOut || solution.get() != null) return false;
+
+			int remaining = limit - depth;
+			int offset = depth*numBoxes;
+			if (remaining == 0 || !isClearable(offset)) return false;
+
+			long key = restore(depth);
+			if (table.hasFailed(key, remaining)) return false;
+			if (expand(depth, limit, null)) return true;
+
+			if (!timedOut && solution.get() == null) table.storeFailed(key, remaining);
+			return false;
+		}
+
+		/**
+		 * Plays every move from the state at the depth specified and returns one task 
+		 * per resulting state, each with its own copy of the board
+		 * @return The tasks, or null if a move clears the board or the state is pruned
+		 */
+		List<SplitTask> split(int depth, int limit) {
+			if (!isClearable(depth*numBoxes)) return null;
+			long key = restore(depth);
+			if (table.hasFailed(key, limit - depth)) return null;
+
+			List<SplitTask> tasks = new ArrayList<SplitTask>();
+			if (expand(depth, limit, tasks)) return null;
+			return tasks;
+		}
+
+		/**
+		 * Plays every swipe, and every swap of two boxes of different colors, from the state
+		 * at the depth specified, which the working grid must already be set to
+		 * @param tasks If not null, the resulting states are added as tasks instead of searched
+		 * @return True if a solution is found
+		 */
+		private boolean expand(int depth, int limit, List<SplitTask> tasks) {
+			int offset = depth*numBoxes;
+
+			// swipes
+			for (int d = 0; d < SWIPES.length; d++) {
+				if (d > 0) restore(depth);
+				if (!work.resolve(SWIPES[d])) continue;
+				moves[depth] = d;
+				if (work.getNumBoxSpawned() == 0) {
+					publish(depth+1);
+					return true;
+				}
+				if (next(depth, swapsLeft[depth], limit, tasks)) return true;
+			}
+
+			// swaps of every two boxes of different colors
+			if (swapsLeft[depth] > 0) {
+				for (int a = 0; a < numBoxes; a++) {
+					byte first = boards[offset+a];
+					if (first == 0) continue;
+					for (int b = a+1; b < numBoxes; b++) {
+						byte second = boards[offset+b];
+						if (second == 0 || second == first) continue;
+						restore(depth);
+						work.swap(a+1, b+1);
+						work.updateGroups();
+						moves[depth] = encodeSwap(a, b);
+						if (next(depth, swapsLeft[depth]-1, limit, tasks)) return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Continues from the state of the working grid, either by searching it
+		 * right away or by adding it as a task
+		 */
+		private boolean next(int depth, int swaps, int limit, List<SplitTask> tasks) {
+			if (tasks == null) return descend(depth, swaps, limit);
+
+			byte[] board = new byte[numBoxes];
+			work.saveBoard(board, 0);
+			int[] path = new int[depth+1];
+			System.arraycopy(moves, 0, path, 0, depth+1);
+			tasks.add(new SplitTask(board, work.getNumColorGroups() > 0, swaps, path, limit));
+			return false;
+		}
+
+		/**
+		 * Adds the states searched since the last flush to the total
+		 */
+		void flush() {
+			numStates.addAndGet(numSearched);
+			numSearched = 0;
+		}
+
+		/**
+		 * Saves the state of the working grid as the next depth and searches from it
+		 */
+		private boolean descend(int depth, int swaps, int limit) {
+			work.saveBoard(boards, (depth+1)*numBoxes);
+			hasGroups[depth+1] = work.getNumColorGroups() > 0;
+			swapsLeft[depth+1] = swaps;
+			return search(depth+1, limit);
+		}
+
+		/**
+		 * Sets the working grid to the state at the depth specified
+		 * @return Key of the state in the transposition table
+		 */
+		private long restore(int depth) {
+			work.restoreBoard(boards, depth*numBoxes, hasGroups[depth]);
+			return work.getHash() ^ (hasGroups[depth] ? GROUPS_KEY : 0L) ^ mix(swapsLeft[depth]);
+		}
+
+		/**
+		 * Boxes are only ever cleared in groups of at least the minimum chain size of the 
+		 * same color, and moves never change how many boxes of each color there are. A board 
+		 * with fewer boxes than that left of any color can therefore never be cleared.
+		 */
+		private boolean isClearable(int offset) {
+			for (int c = 0; c < NUM_COLORS; c++)
+				colorCounts[c] = 0;
+			for (int i = 0; i < numBoxes; i++)
+				colorCounts[boards[offset+i]]++;
+			for (int c = 1; c < NUM_COLORS; c++)
+				if (colorCounts[c] > 0 && colorCounts[c] < minChainSize) return false;
+			return true;
+		}
+
+		/**
+		 * Offers the moves of the current path as the solution, unless another thread
+		 * found one first. Any solution found within the same limit is a shortest one.
+		 */
+		private void publish(int length) {
+			List<Move> path = new ArrayList<Move>(length);
+			for (int i = 0; i < length; i++) {
+				int move = moves[i];
+				if (move < SWIPES.length)
+					path.add(new Move(SWIPES[move]));
+				else {
+					int pair = move - SWIPES.length;
+					path.add(new Move(pair / numBoxes + 1, pair % numBoxes + 1));
+				}
+			}
+			solution.compareAndSet(null, path);
+		}
+
+		private int encodeSwap(int a, int b) {
+			return SWIPES.length + a*numBoxes + b;
+		}
+	}
+
+	private static long mix(long z) {
+		z = (z + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Solves every level file given and checks that its move limit and reward
+	 * thresholds can be reached. Exits with a non-zero status if any cannot.
+	 * @param args Paths to level files
+	 */
+	public static void main(String[] args) {
+		boolean failed = false;
+		for (String path : args) {
+			Grid grid = Grid.load(GameMode.CHALLENGE, new FileHandle(new File(path)));
+			Result result = new Solver(grid).solve();
+			String status = "ok";
+			if (!result.isSolved())
+				status = result.isTimedOut() ? "TIMED OUT" : "UNSOLVABLE";
+			else if (grid.getMovesLeft() - result.getNumMoves() < grid.getMinGoldMoves())
+				status = "GOLD UNREACHABLE";
+			else if (grid.getMovesLeft() - result.getNumMoves() < grid.getMinSilverMoves())
+				status = "SILVER UNREACHABLE";
+			if (!status.equals("ok")) failed = true;
+			System.out.println(path + ": " + status + ", " + result + " in " +
+					result.getTime() + " ms, " + result.getNumStates() + " states");
+		}
+		if (failed) System.exit(1);
+	}
+}
@@ -0,0 +1,67 @@
+package com.code2play.grid.game;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size table of search states known to fail with a number of moves remaining,
+ * shared by every thread of a search without locking. Each entry packs the upper
+ * bits of a state hash together with its remaining depth into a single long, so that
+ * an entry is always read and written as a whole. Colliding states overwrite each
+ * other, which only costs repeated work, never a wrong answer.
+ */
+class TranspositionTable {
+
+	/** Bytes used by one entry **/
+	static final int ENTRY_SIZE = 8;
+
+	/** Low bits of an entry that hold the remaining depth **/
+	private static final long DEPTH_MASK = 0xFFL;
+
+	private final AtomicLongArray entries;
+	private final int mask;
+
+	/**
+	 * Constructs a table that uses at most the number of bytes specified
+	 * @param memoryLimit
+	 */
+	TranspositionTable(long memoryLimit) {
+		long count = Math.max(memoryLimit / ENTRY_SIZE, 1024);
+		int size = Integer.highestOneBit((int) Math.min(count, 1 << 30));
+		entries = new AtomicLongArray(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns whether or not the state with the hash specified already failed
+	 * with at least the number of moves remaining
+	 * @param key
+	 * @param remaining
+	 * @return
+	 */
+	boolean hasFailed(long key, int remaining) {
+		long entry = entries.get(slot(key));
+		return (entry & ~DEPTH_MASK) == tag(key) && (entry & DEPTH_MASK) >= remaining;
+	}
+
+	/**
+	 * Records that the state with the hash specified fails with the number of moves remaining
+	 * @param key
+	 * @param remaining
+	 */
+	void storeFailed(long key, int remaining) {
+		int slot = slot(key);
+		long entry = entries.get(slot);
+		if ((entry & ~DEPTH_MASK) == tag(key) && (entry & DEPTH_MASK) >= remaining) return;
+		entries.set(slot, tag(key) | Math.min(remaining, (int) DEPTH_MASK));
+	}
+
+	private int slot(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/** Upper bits of the hash, never zero so that empty entries never match **/
+	private static long tag(long key) {
+		long tag = key & ~DEPTH_MASK;
+		return tag == 0L ? DEPTH_MASK + 1 : tag;
+	}
+}
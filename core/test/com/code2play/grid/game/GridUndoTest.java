@@ -0,0 +1,91 @@
+package com.code2play.grid.game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.code2play.grid.game.GridBox.Color;
+
+public class GridUndoTest {
+
+	private static Grid createGrid(int width, int height, int movesLeft, int... redIds) {
+		byte[] colors = new byte[width*height];
+		for (int id : redIds) 
+			colors[id-1] = (byte) Color.RED.ordinal();
+		Grid grid = new Grid(GameMode.CHALLENGE, new LevelTemplate(0, width, height, movesLeft, 
+				0, 0, -1, 0, colors));
+		grid.setUndoCount(9);
+		return grid;
+	}
+
+	private static Color colorOf(Grid grid, int id) {
+		return grid.getGrid().get(id-1).getColor();
+	}
+
+	@Test
+	public void noOpSwipeKeepsFullUndoBuffer() {
+		for (int size : new int[] { 3, 9 }) {
+			Grid grid = createGrid(size, size, 100, 1);
+			for (int i = 0; i < 9; i++) {
+				assertTrue(grid.update(0, i % 2 == 0 ? Swipe.RIGHT : Swipe.LEFT));
+				grid.updateMoveCount();
+			}
+			assertEquals(91, grid.getMovesLeft());
+
+			// the box is already at the right edge
+			assertFalse(grid.update(0, Swipe.RIGHT));
+			assertEquals(9, grid.getNumSnapshots());
+
+			for (int i = 0; i < 9; i++) 
+				assertTrue(grid.undoMove());
+			assertEquals(100, grid.getMovesLeft());
+			assertEquals(Color.RED, colorOf(grid, 1));
+			assertEquals(Color.NONE, colorOf(grid, size));
+			assertEquals(0, grid.getNumSnapshots());
+		}
+	}
+
+	@Test
+	public void failedSwapKeepsFullUndoBuffer() {
+		Grid grid = createGrid(3, 3, 100, 1);
+		for (int i = 0; i < 9; i++) {
+			grid.update(0, i % 2 == 0 ? Swipe.DOWN : Swipe.UP);
+			grid.updateMoveCount();
+		}
+		grid.update(0, 7, 8);
+		assertEquals(9, grid.getNumSnapshots());
+
+		for (int i = 0; i < 9; i++) 
+			assertTrue(grid.undoMove());
+		assertEquals(100, grid.getMovesLeft());
+		assertEquals(Color.RED, colorOf(grid, 1));
+	}
+
+	@Test
+	public void undoKeepsChainedGroups() {
+		// blue boxes at 7 and 8, a green box at 9 that is swapped with the blue box at 3
+		byte[] colors = new byte[9];
+		colors[0] = (byte) Color.RED.ordinal();
+		colors[2] = colors[6] = colors[7] = (byte) Color.BLUE.ordinal();
+		colors[8] = (byte) Color.GREEN.ordinal();
+		Grid grid = new Grid(GameMode.CHALLENGE, new LevelTemplate(0, 3, 3, 100, 0, 0, -1, 2, colors));
+		grid.setUndoCount(9);
+		grid.update(0, 3, 9);
+		assertEquals(1, grid.getNumColorGroups());
+
+		// a box spawned after the group of 7, 8 and 9 is found does not join it
+		grid.spawnGridBoxAt(6, Color.BLUE);
+		grid.update(0, 1, 3);
+		assertTrue(grid.undoMove());
+		assertEquals(1, grid.getNumColorGroups());
+
+		grid.update(0, Swipe.LEFT);
+		assertEquals(Color.RED, colorOf(grid, 1));
+		assertEquals(Color.GREEN, colorOf(grid, 2));
+		assertEquals(Color.BLUE, colorOf(grid, 4));
+		for (int id = 7; id <= 9; id++) 
+			assertEquals(Color.REMOVED, colorOf(grid, id));
+	}
+}